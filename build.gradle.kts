@@ -1,6 +1,7 @@
 plugins {
     id("qupath-conventions")
     `maven-publish`
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 qupathExtension {
@@ -27,6 +28,37 @@ dependencies {
 
 }
 
+// Benchmarks use generated inputs, so they don't require PyTorch - except for MatTranslator,
+// which needs a DJL engine and is only run with -Pjmh.engine
+// Run with ./gradlew jmh, results are written to build/results/jmh/results.json for comparison between builds
+jmh {
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+    if (!project.hasProperty("jmh.engine")) {
+        excludes.add("MatTranslatorBenchmark")
+    }
+    if (project.hasProperty("jmh.includes")) {
+        includes.add(project.property("jmh.includes").toString())
+    }
+}
+
+// End-to-end throughput on a synthetic whole-slide image, sweeping over the parameters given, e.g.
+// ./gradlew throughputBenchmark -Pthroughput.args="--tileDims=512,1024 --threads=4,8 --baseline=throughput-baseline.json"
+// See ThroughputBenchmark for all options
+tasks.register<JavaExec>("throughputBenchmark") {
+    group = "benchmark"
+    description = "Measures end-to-end InstanSeg throughput on a synthetic whole-slide image"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "qupath.ext.instanseg.core.ThroughputBenchmark"
+    args("--output=" + layout.buildDirectory.file("results/throughput/results.json").get().asFile)
+    if (project.hasProperty("throughput.args")) {
+        args(project.property("throughput.args").toString().split(" ").filter { it.isNotBlank() })
+    }
+}
+
 publishing {
     repositories {
         maven {
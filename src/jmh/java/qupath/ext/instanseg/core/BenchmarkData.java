@@ -0,0 +1,99 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Generated inputs for benchmarks, so that they can run without a model or PyTorch.
+ */
+class BenchmarkData {
+
+    private BenchmarkData() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Create a synthetic label image containing filled circles, similar to the output of InstanSeg.
+     * @param width the image width
+     * @param height the image height
+     * @param nObjects the number of objects
+     * @param nChannels 1 for nuclei only, or 2 for nuclei and cells
+     * @param seed the random seed
+     * @return a label image with type CV_32S
+     */
+    static Mat createLabels(int width, int height, int nObjects, int nChannels, long seed) {
+        var rng = new Random(seed);
+        var nuclei = new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0));
+        var cells = nChannels > 1 ? new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0)) : null;
+        for (int i = 1; i <= nObjects; i++) {
+            var center = new Point(rng.nextInt(width), rng.nextInt(height));
+            int radius = 4 + rng.nextInt(6);
+            if (cells != null)
+                opencv_imgproc.circle(cells, center, radius * 2, Scalar.all(i), -1, opencv_imgproc.LINE_8, 0);
+            opencv_imgproc.circle(nuclei, center, radius, Scalar.all(i), -1, opencv_imgproc.LINE_8, 0);
+        }
+        if (cells == null)
+            return nuclei;
+        var output = new Mat();
+        opencv_core.merge(new MatVector(nuclei, cells), output);
+        return output;
+    }
+
+    /**
+     * Create a synthetic RGB image with dark 'nuclei' on a light background.
+     * @param width the image width
+     * @param height the image height
+     * @param nObjects the number of objects
+     * @param seed the random seed
+     * @return the image
+     */
+    static ImageData<BufferedImage> createImageData(int width, int height, int nObjects, long seed) {
+        var rng = new Random(seed);
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var g2d = img.createGraphics();
+        g2d.setColor(new java.awt.Color(230, 220, 230));
+        g2d.fillRect(0, 0, width, height);
+        g2d.setColor(new java.awt.Color(80, 50, 120));
+        for (int i = 0; i < nObjects; i++) {
+            int r = 4 + rng.nextInt(6);
+            g2d.fillOval(rng.nextInt(width) - r, rng.nextInt(height) - r, r * 2, r * 2);
+        }
+        g2d.dispose();
+        var server = new WrappedBufferedImageServer("benchmark-" + seed, img);
+        return new ImageData<>(server);
+    }
+
+    /**
+     * Create a parent annotation covering a region of an image.
+     */
+    static PathObject createParent(int x, int y, int width, int height) {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+
+    /**
+     * Create parameters for processing a region of an image.
+     */
+    static Parameters<Mat, Mat> createParameters(ImageData<BufferedImage> imageData, RegionRequest request, PathObject parent) {
+        return Parameters.<Mat, Mat>builder()
+                .imageData(imageData)
+                .region(request)
+                .parent(parent)
+                .build();
+    }
+
+}
@@ -0,0 +1,60 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import qupath.ext.djl.DjlTools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for converting between Mats and NDArrays, as done by {@link MatTranslator} before and after inference.
+ * <p>
+ * Unlike the other benchmarks, this requires a DJL engine (e.g. PyTorch) to be available -
+ * so it is excluded by default, and can be run with {@code ./gradlew jmh -Pjmh.engine}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MatTranslatorBenchmark {
+
+    @Param({"256", "512", "1024"})
+    public int tileSize;
+
+    private NDManager manager;
+    private Mat input;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        manager = NDManager.newBaseManager();
+        input = new Mat(tileSize, tileSize, opencv_core.CV_32FC3);
+        opencv_core.randu(input, Scalar.all(0), Scalar.all(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public Mat roundTrip() {
+        try (var subManager = manager.newSubManager()) {
+            var array = DjlTools.matToNDArray(subManager, input, "CHW");
+            var list = new NDList(array);
+            return DjlTools.ndArrayToMat(list.getFirst(), "CHW");
+        }
+    }
+
+}
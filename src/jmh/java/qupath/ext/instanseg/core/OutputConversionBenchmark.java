@@ -0,0 +1,69 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for converting label images to objects, and pruning objects at tile boundaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputConversionBenchmark {
+
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * Number of objects per tile.
+     */
+    @Param({"50", "300", "1200"})
+    public int nObjects;
+
+    /**
+     * Number of output channels (1 for nuclei, 2 for nuclei and cells).
+     */
+    @Param({"1", "2"})
+    public int nChannels;
+
+    private Mat labels;
+    private Parameters<Mat, Mat> params;
+    private InstanSegOutputToObjectConverter converter;
+    private PruneObjectOutputHandler<Mat, Mat, Mat> pruner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var imageData = BenchmarkData.createImageData(TILE_SIZE * 2, TILE_SIZE * 2, 0, 1);
+        var request = RegionRequest.createInstance(imageData.getServerPath(), 1.0, TILE_SIZE / 2, TILE_SIZE / 2, TILE_SIZE, TILE_SIZE);
+        var parent = BenchmarkData.createParent(0, 0, TILE_SIZE * 2, TILE_SIZE * 2);
+        params = BenchmarkData.createParameters(imageData, request, parent);
+        labels = BenchmarkData.createLabels(TILE_SIZE, TILE_SIZE, nObjects, nChannels, 42);
+        converter = new InstanSegOutputToObjectConverter(nChannels > 1 ? PathCellObject.class : null, true);
+        pruner = new PruneObjectOutputHandler<>(converter, 1);
+    }
+
+    @Benchmark
+    public List<PathObject> convertToObjects() {
+        return converter.convertToObjects(params, labels);
+    }
+
+    @Benchmark
+    public boolean pruneObjects() {
+        return pruner.handleOutput(params, labels);
+    }
+
+}
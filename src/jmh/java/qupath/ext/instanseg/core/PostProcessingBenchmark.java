@@ -0,0 +1,63 @@
+package qupath.ext.instanseg.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.utils.ObjectProcessor;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for merging objects from overlapping tiles and fixing overlaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PostProcessingBenchmark {
+
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * Number of objects per tile.
+     */
+    @Param({"50", "300", "1200"})
+    public int nObjects;
+
+    private List<PathObject> pathObjects;
+    private ObjectProcessor postProcessor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var imageData = BenchmarkData.createImageData(TILE_SIZE * 2, TILE_SIZE, 0, 1);
+        var parent = BenchmarkData.createParent(0, 0, TILE_SIZE * 2, TILE_SIZE);
+        var converter = new InstanSegOutputToObjectConverter(null, false);
+
+        // Create two overlapping tiles containing the same labels, so that there are objects to merge
+        pathObjects = new ArrayList<>();
+        int offset = TILE_SIZE * 3 / 4;
+        var labels = BenchmarkData.createLabels(offset + TILE_SIZE, TILE_SIZE, nObjects * 7 / 4, 1, 42);
+        for (int x : new int[]{0, offset}) {
+            var request = RegionRequest.createInstance(imageData.getServerPath(), 1.0, x, 0, TILE_SIZE, TILE_SIZE);
+            var tileLabels = labels.colRange(x, x + TILE_SIZE);
+            var params = BenchmarkData.createParameters(imageData, request, parent);
+            pathObjects.addAll(converter.convertToObjects(params, tileLabels.clone()));
+        }
+        postProcessor = InstanSeg.createPostProcessor();
+    }
+
+    @Benchmark
+    public List<PathObject> mergeAndFixOverlaps() {
+        return postProcessor.process(pathObjects);
+    }
+
+}
@@ -0,0 +1,73 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.ops.ImageOps;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for computing normalization parameters and preprocessing tiles before inference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PreprocessingBenchmark {
+
+    /**
+     * Width and height of the region used to compute normalization.
+     */
+    @Param({"1024", "4096"})
+    public int regionSize;
+
+    /**
+     * Tile width and height.
+     */
+    @Param({"512"})
+    public int tileSize;
+
+    private ImageData<BufferedImage> imageData;
+    private PathObject parent;
+    private List<ColorTransforms.ColorTransform> channels;
+    private TilePredictionProcessor.Normalization normalization;
+    private Mat tile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        imageData = BenchmarkData.createImageData(regionSize, regionSize, regionSize * regionSize / 2000, 1);
+        parent = BenchmarkData.createParent(0, 0, regionSize, regionSize);
+        channels = List.of(
+                ColorTransforms.createChannelExtractor(0),
+                ColorTransforms.createChannelExtractor(1),
+                ColorTransforms.createChannelExtractor(2));
+        normalization = TilePredictionProcessor.getNormalization(imageData, parent.getROI(), channels, 0.1, 99.9);
+        var request = RegionRequest.createInstance(imageData.getServerPath(), 1.0, 0, 0, tileSize, tileSize);
+        tile = ImageOps.buildImageDataOp(channels).apply(imageData, request);
+    }
+
+    @Benchmark
+    public TilePredictionProcessor.Normalization computeNormalization() {
+        return TilePredictionProcessor.getNormalization(imageData, parent.getROI(), channels, 0.1, 99.9);
+    }
+
+    @Benchmark
+    public Mat preprocessTile() {
+        return TilePredictionProcessor.preprocess(tile, normalization);
+    }
+
+}
@@ -0,0 +1,194 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A pyramidal image server that generates a synthetic whole-slide image containing 'nuclei' within an
+ * elliptical region of 'tissue'.
+ * <p>
+ * Nuclei are generated from a fixed grid of seeds, so that every tile (at every resolution) is consistent with
+ * every other tile - and repeated runs see the same image.
+ * If there are 3 channels, the image is RGB with dark nuclei on a light background (like a brightfield image);
+ * otherwise, it is 8-bit multichannel with bright nuclei and cytoplasm on a dark background (like fluorescence).
+ */
+class SyntheticImageServer extends AbstractTileableImageServer {
+
+    private static final int GRID_SIZE = 128;
+    private static final int MAX_RADIUS = 10;
+
+    private final ImageServerMetadata metadata;
+    private final double nucleiPerMegapixel;
+    private final long seed;
+
+    /**
+     * Create a synthetic image.
+     * @param width the full-resolution width
+     * @param height the full-resolution height
+     * @param nChannels the number of channels; 3 gives an RGB image
+     * @param nucleiPerMegapixel the density of nuclei within the tissue
+     * @param seed the random seed
+     */
+    SyntheticImageServer(int width, int height, int nChannels, double nucleiPerMegapixel, long seed) {
+        this.nucleiPerMegapixel = nucleiPerMegapixel;
+        this.seed = seed;
+        boolean isRGB = nChannels == 3;
+        this.metadata = new ImageServerMetadata.Builder()
+                .width(width)
+                .height(height)
+                .name("Synthetic " + width + "x" + height)
+                .rgb(isRGB)
+                .pixelType(PixelType.UINT8)
+                .channels(isRGB ? ImageChannel.getDefaultRGBChannels() : ImageChannel.getDefaultChannelList(nChannels))
+                .preferredTileSize(512, 512)
+                .levelsFromDownsamples(1, 4, 16, 64)
+                .pixelSizeMicrons(0.5, 0.5)
+                .build();
+    }
+
+    @Override
+    protected BufferedImage readTile(TileRequest tileRequest) {
+        double downsample = tileRequest.getDownsample();
+        int x = tileRequest.getImageX();
+        int y = tileRequest.getImageY();
+        int width = tileRequest.getTileWidth();
+        int height = tileRequest.getTileHeight();
+
+        // Draw nuclei and cytoplasm as separate masks, which are then combined according to the image type
+        var nuclei = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        var cells = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        var gNuclei = createGraphics(nuclei, x, y, downsample);
+        var gCells = createGraphics(cells, x, y, downsample);
+
+        int gx1 = Math.max(0, (x - MAX_RADIUS * 2) / GRID_SIZE);
+        int gy1 = Math.max(0, (y - MAX_RADIUS * 2) / GRID_SIZE);
+        int gx2 = (int)Math.min(getWidth() - 1, x + tileRequest.getImageWidth() + MAX_RADIUS * 2) / GRID_SIZE;
+        int gy2 = (int)Math.min(getHeight() - 1, y + tileRequest.getImageHeight() + MAX_RADIUS * 2) / GRID_SIZE;
+        double expected = nucleiPerMegapixel * GRID_SIZE * GRID_SIZE / 1e6;
+        for (int gy = gy1; gy <= gy2; gy++) {
+            for (int gx = gx1; gx <= gx2; gx++) {
+                var rng = new Random(seed * 31 + gx * 1_000_003L + gy);
+                int n = (int)Math.max(0, Math.round(expected + rng.nextGaussian() * Math.sqrt(expected)));
+                for (int i = 0; i < n; i++) {
+                    double cx = (gx + rng.nextDouble()) * GRID_SIZE;
+                    double cy = (gy + rng.nextDouble()) * GRID_SIZE;
+                    double r = 4 + rng.nextDouble() * (MAX_RADIUS - 4);
+                    if (!isTissue(cx, cy))
+                        continue;
+                    gCells.fillOval((int)(cx - r * 2), (int)(cy - r * 2), (int)(r * 4), (int)(r * 4));
+                    gNuclei.fillOval((int)(cx - r), (int)(cy - r), (int)(r * 2), (int)(r * 2));
+                }
+            }
+        }
+        gNuclei.dispose();
+        gCells.dispose();
+
+        if (isRGB())
+            return createRGB(nuclei, cells);
+        else
+            return createMultichannel(nuclei, cells);
+    }
+
+    private static Graphics2D createGraphics(BufferedImage img, int x, int y, double downsample) {
+        var g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.scale(1.0 / downsample, 1.0 / downsample);
+        g2d.translate(-x, -y);
+        g2d.setColor(Color.WHITE);
+        return g2d;
+    }
+
+    /**
+     * Check if a point is inside the elliptical tissue region, which covers most of the image - leaving some
+     * background in the corners.
+     */
+    private boolean isTissue(double x, double y) {
+        double dx = (x - getWidth() / 2.0) / (getWidth() / 2.0);
+        double dy = (y - getHeight() / 2.0) / (getHeight() / 2.0);
+        return dx * dx + dy * dy <= 1.0;
+    }
+
+    private static BufferedImage createRGB(BufferedImage nuclei, BufferedImage cells) {
+        int width = nuclei.getWidth();
+        int height = nuclei.getHeight();
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var rasterNuclei = nuclei.getRaster();
+        var rasterCells = cells.getRaster();
+        for (int yy = 0; yy < height; yy++) {
+            for (int xx = 0; xx < width; xx++) {
+                double n = rasterNuclei.getSample(xx, yy, 0) / 255.0;
+                double c = rasterCells.getSample(xx, yy, 0) / 255.0;
+                // Hematoxylin-like nuclei on eosin-like cytoplasm
+                int r = (int)(235 - 35 * c - 120 * n);
+                int g = (int)(225 - 75 * c - 125 * n);
+                int b = (int)(235 - 25 * c - 65 * n);
+                img.setRGB(xx, yy, (r << 16) | (g << 8) | b);
+            }
+        }
+        return img;
+    }
+
+    private BufferedImage createMultichannel(BufferedImage nuclei, BufferedImage cells) {
+        int width = nuclei.getWidth();
+        int height = nuclei.getHeight();
+        int nChannels = nChannels();
+        WritableRaster raster = WritableRaster.createBandedRaster(DataBuffer.TYPE_BYTE, width, height, nChannels, null);
+        var rasterNuclei = nuclei.getRaster();
+        var rasterCells = cells.getRaster();
+        for (int yy = 0; yy < height; yy++) {
+            for (int xx = 0; xx < width; xx++) {
+                int n = rasterNuclei.getSample(xx, yy, 0);
+                int c = rasterCells.getSample(xx, yy, 0);
+                raster.setSample(xx, yy, 0, 10 + n * 3 / 4);
+                for (int band = 1; band < nChannels; band++) {
+                    raster.setSample(xx, yy, band, 10 + c / (band + 1));
+                }
+            }
+        }
+        var colorModel = ColorModelFactory.createColorModel(PixelType.UINT8, getMetadata().getChannels());
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    @Override
+    protected ImageServerBuilder.ServerBuilder<BufferedImage> createServerBuilder() {
+        return null;
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + getWidth() + "x" + getHeight() + "x" + nChannels()
+                + ", density=" + nucleiPerMegapixel + ", seed=" + seed;
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return List.of();
+    }
+
+    @Override
+    public String getServerType() {
+        return "Synthetic image server";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+}
@@ -0,0 +1,275 @@
+package qupath.ext.instanseg.core;
+
+import com.google.gson.reflect.TypeToken;
+import qupath.lib.images.ImageData;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end throughput benchmark, which runs InstanSeg on a synthetic whole-slide image for every combination
+ * of tile size, padding, number of threads and number of predictors.
+ * <p>
+ * Unlike the JMH benchmarks, this exercises the full detection path (reading, normalization, inference, conversion
+ * and merging) and reports tiles/s, objects/s, peak heap usage and the time spent in each stage.
+ * By default, a {@link SyntheticInferenceBackend} is used so that no model or PyTorch is required.
+ * <p>
+ * If a baseline file is given, the benchmark fails when the throughput of any configuration falls below the
+ * baseline by more than the tolerance. Baselines depend upon the hardware, so should be created on the machine
+ * used for comparison with {@code --updateBaseline}.
+ * <p>
+ * Run with {@code ./gradlew throughputBenchmark -Pthroughput.args="--tileDims=512,1024 --threads=4,8"}.
+ * Options are:
+ * <ul>
+ *     <li>{@code --width}, {@code --height}: image size (default 16384 x 16384)</li>
+ *     <li>{@code --channels}: number of channels; 3 gives an RGB image (default 3)</li>
+ *     <li>{@code --density}: nuclei per megapixel within the tissue (default 2000)</li>
+ *     <li>{@code --tileDims}, {@code --padding}, {@code --threads}, {@code --predictors}: comma-separated values
+ *         to sweep (defaults 512; 80; available processors; 1)</li>
+ *     <li>{@code --backend}: {@code synthetic} (default) or {@code djl}, which requires {@code --model}</li>
+ *     <li>{@code --model}: path to a model directory</li>
+ *     <li>{@code --device}: device for the DJL backend (default cpu)</li>
+ *     <li>{@code --latency}: simulated latency per tile for the synthetic backend, in milliseconds (default 0)</li>
+ *     <li>{@code --baseline}: path to a JSON baseline file</li>
+ *     <li>{@code --updateBaseline}: write the results to the baseline file, rather than comparing against it</li>
+ *     <li>{@code --tolerance}: permitted drop in throughput relative to the baseline (default 0.2)</li>
+ *     <li>{@code --output}: path to write the full results as JSON</li>
+ * </ul>
+ */
+public class ThroughputBenchmark {
+
+    private static final int WARMUP_SIZE = 2048;
+
+    /**
+     * A combination of parameters to test.
+     */
+    record Config(int tileDims, int padding, int threads, int predictors) {
+
+        /**
+         * Get a key used to identify the configuration in the baseline file.
+         */
+        String key() {
+            return String.format(Locale.ROOT, "tileDims=%d,padding=%d,threads=%d,predictors=%d",
+                    tileDims, padding, threads, predictors);
+        }
+
+    }
+
+    /**
+     * The results for one configuration.
+     */
+    record Result(Config config, int nTiles, int nTilesSkipped, int nObjects, double seconds,
+                  double tilesPerSecond, double objectsPerSecond, long peakHeapBytes,
+                  Map<String, Long> stageTimesMillis) {}
+
+    public static void main(String[] args) throws Exception {
+        var options = parseArgs(args);
+        boolean passed = run(options);
+        // Exit explicitly, since thread pools may keep the JVM alive
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(Map<String, String> options) throws Exception {
+        int width = Integer.parseInt(options.getOrDefault("width", "16384"));
+        int height = Integer.parseInt(options.getOrDefault("height", "16384"));
+        int nChannels = Integer.parseInt(options.getOrDefault("channels", "3"));
+        double density = Double.parseDouble(options.getOrDefault("density", "2000"));
+        var tileDimsList = parseInts(options.getOrDefault("tileDims", "512"));
+        var paddingList = parseInts(options.getOrDefault("padding", "80"));
+        var threadsList = parseInts(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        var predictorsList = parseInts(options.getOrDefault("predictors", "1"));
+        double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.2"));
+
+        List<Result> results = new ArrayList<>();
+        for (int tileDims : tileDimsList) {
+            for (int padding : paddingList) {
+                for (int threads : threadsList) {
+                    for (int predictors : predictorsList) {
+                        var config = new Config(tileDims, padding, threads, predictors);
+                        var instanSeg = createInstanSeg(options, config);
+                        try (var session = instanSeg.openSession(predictors)) {
+                            // Warm up with a small region, so that class loading and JIT compilation aren't included
+                            runOnce(config, session, width, height, nChannels, density, true);
+                            var result = runOnce(config, session, width, height, nChannels, density, false);
+                            printResult(result);
+                            results.add(result);
+                        }
+                    }
+                }
+            }
+        }
+
+        var gson = GsonTools.getInstance(true);
+        if (options.containsKey("output")) {
+            var output = Path.of(options.get("output"));
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+            Files.writeString(output, gson.toJson(results));
+        }
+
+        if (!options.containsKey("baseline"))
+            return true;
+        var baselinePath = Path.of(options.get("baseline"));
+        if (options.containsKey("updateBaseline")) {
+            Map<String, Double> baseline = new LinkedHashMap<>();
+            for (var result : results)
+                baseline.put(result.config().key(), result.tilesPerSecond());
+            Files.writeString(baselinePath, gson.toJson(baseline));
+            System.out.println("Baseline written to " + baselinePath);
+            return true;
+        }
+        return compareToBaseline(results, baselinePath, tolerance);
+    }
+
+    private static InstanSeg createInstanSeg(Map<String, String> options, Config config) throws IOException {
+        var builder = InstanSeg.builder()
+                .tileDims(config.tileDims())
+                .interTilePadding(config.padding())
+                .nThreads(config.threads());
+        String backend = options.getOrDefault("backend", "synthetic");
+        switch (backend) {
+            case "synthetic" -> builder.backend(SyntheticInferenceBackend.builder()
+                    .latency(Long.parseLong(options.getOrDefault("latency", "0")), 0)
+                    .build());
+            case "djl" -> {
+                if (!options.containsKey("model"))
+                    throw new IllegalArgumentException("--model is required for the DJL backend");
+                builder.modelPath(options.get("model"))
+                        .device(options.getOrDefault("device", "cpu"));
+            }
+            default -> throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        return builder.build();
+    }
+
+    private static Result runOnce(Config config, InstanSegSession session, int width, int height, int nChannels,
+                                  double density, boolean isWarmup) throws Exception {
+        var server = new SyntheticImageServer(width, height, nChannels, density, 42);
+        try {
+            var imageData = new ImageData<>(server);
+            PathObject annotation;
+            if (isWarmup) {
+                int size = Math.min(WARMUP_SIZE, Math.min(width, height));
+                annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(
+                        (width - size) / 2.0, (height - size) / 2.0, size, size, ImagePlane.getDefaultPlane()));
+            } else {
+                annotation = PathObjects.createAnnotationObject(ROIs.createEllipseROI(
+                        0, 0, width, height, ImagePlane.getDefaultPlane()));
+            }
+            imageData.getHierarchy().addObject(annotation);
+
+            resetPeakHeap();
+            var results = session.detectObjects(imageData, List.of(annotation));
+            long peakHeap = getPeakHeap();
+            if (results.nTilesFailed() > 0)
+                throw new IOException(results.nTilesFailed() + " tiles failed");
+
+            double seconds = results.processingTimeMillis() / 1000.0;
+            return new Result(config, results.nTilesProcessed(), results.nTilesSkipped(), results.nObjectsDetected(), seconds,
+                    results.nTilesProcessed() / seconds, results.nObjectsDetected() / seconds, peakHeap,
+                    results.stageTimesMillis());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static boolean compareToBaseline(List<Result> results, Path baselinePath, double tolerance) throws IOException {
+        if (!Files.exists(baselinePath)) {
+            System.out.println("No baseline found at " + baselinePath + " - create one with --updateBaseline");
+            return true;
+        }
+        Map<String, Double> baseline = GsonTools.getInstance().fromJson(
+                Files.readString(baselinePath), new TypeToken<HashMap<String, Double>>() {}.getType());
+        boolean passed = true;
+        for (var result : results) {
+            var key = result.config().key();
+            var expected = baseline.get(key);
+            if (expected == null) {
+                System.out.println("No baseline for " + key);
+                continue;
+            }
+            double ratio = result.tilesPerSecond() / expected;
+            if (ratio < 1 - tolerance) {
+                System.out.printf(Locale.ROOT, "REGRESSION %s: %.2f tiles/s (baseline %.2f, %.0f%%)%n",
+                        key, result.tilesPerSecond(), expected, ratio * 100);
+                passed = false;
+            } else {
+                System.out.printf(Locale.ROOT, "OK %s: %.2f tiles/s (baseline %.2f, %.0f%%)%n",
+                        key, result.tilesPerSecond(), expected, ratio * 100);
+            }
+        }
+        return passed;
+    }
+
+    private static void printResult(Result result) {
+        System.out.printf(Locale.ROOT, "%s: %d tiles (%d skipped), %d objects in %.1f s - %.2f tiles/s, %.1f objects/s, peak heap %d MB%n",
+                result.config().key(), result.nTiles(), result.nTilesSkipped(), result.nObjects(), result.seconds(),
+                result.tilesPerSecond(), result.objectsPerSecond(), result.peakHeapBytes() / (1024 * 1024));
+        System.out.println("  Stage times (ms, summed across threads): " + result.stageTimesMillis());
+    }
+
+    /**
+     * Reset peak usage for all heap memory pools.
+     */
+    private static void resetPeakHeap() {
+        System.gc();
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Get the peak heap usage since the last reset.
+     * This sums the peak of each pool, so may overestimate the true peak slightly.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static List<Integer> parseInts(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::strip)
+                .filter(s -> !s.isEmpty())
+                .map(Integer::parseInt)
+                .toList();
+    }
+
+    /**
+     * Parse arguments of the form {@code --key=value}, or {@code --key} for flags.
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (var arg : args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            int ind = arg.indexOf('=');
+            if (ind < 0)
+                options.put(arg.substring(2), "true");
+            else
+                options.put(arg.substring(2, ind), arg.substring(ind + 1));
+        }
+        return options;
+    }
+
+}
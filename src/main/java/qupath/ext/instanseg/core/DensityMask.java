@@ -0,0 +1,136 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ops.ImageOps;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Low-resolution mask indicating where objects might be found within a region.
+ * <p>
+ * This is used for a coarse-to-fine cascade: the parent region is read once at a low resolution, and a cheap
+ * density heuristic (the local standard deviation of the per-pixel maximum of the normalized channels) is used
+ * to find areas that contain structure. Only tiles that overlap these areas need to be read and inferred at
+ * full resolution.
+ */
+class DensityMask {
+
+    private static final Logger logger = LoggerFactory.getLogger(DensityMask.class);
+
+    private final Mat mask;
+    private final RegionRequest request;
+
+    private DensityMask(Mat mask, RegionRequest request) {
+        this.mask = mask;
+        this.request = request;
+    }
+
+    /**
+     * Compute a density mask for a ROI.
+     * @param imageData the image
+     * @param roi the ROI
+     * @param channels the input channels
+     * @param normalization the normalization that will be applied to tiles
+     * @param downsample the downsample at which to compute the mask
+     * @param threshold the minimum local standard deviation of normalized pixels for a location to be included
+     * @param dilation the number of pixels (at the mask resolution) to expand the mask, to avoid missing objects
+     *                 at the boundary of dense areas
+     * @return the mask
+     * @throws IOException if the image can't be read
+     */
+    static DensityMask compute(ImageData<BufferedImage> imageData, ROI roi,
+                               Collection<? extends ColorTransforms.ColorTransform> channels,
+                               TilePredictionProcessor.Normalization normalization,
+                               double downsample, double threshold, int dilation) throws IOException {
+        var request = RegionRequest.createInstance(imageData.getServerPath(), downsample, roi);
+
+        // Compute the local variance of a single channel, so that we only need to blur once
+        var mask = new Mat();
+        try (var mat = readMaxChannel(imageData, request, channels, normalization);
+             var size = new Size(5, 5);
+             var mean = new Mat();
+             var meanSquared = new Mat();
+             var variance = new Mat()) {
+            opencv_imgproc.blur(mat, mean, size);
+            try (var squared = mat.mul(mat); var squaredMat = squared.asMat()) {
+                opencv_imgproc.blur(squaredMat, meanSquared, size);
+            }
+            try (var squaredMean = mean.mul(mean); var squaredMeanMat = squaredMean.asMat()) {
+                opencv_core.subtract(meanSquared, squaredMeanMat, variance);
+            }
+            opencv_imgproc.threshold(variance, mask, threshold * threshold, 255, opencv_imgproc.THRESH_BINARY);
+            mask.convertTo(mask, opencv_core.CV_8U);
+            if (dilation > 0) {
+                try (var kernelSize = new Size(dilation * 2 + 1, dilation * 2 + 1);
+                     var kernel = opencv_imgproc.getStructuringElement(opencv_imgproc.MORPH_RECT, kernelSize)) {
+                    opencv_imgproc.dilate(mask, mask, kernel);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            mask.close();
+            throw e;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Density mask for {} covers {}% of the bounding box", roi,
+                    Math.round(opencv_core.countNonZero(mask) * 100.0 / Math.max(1, mask.total())));
+        }
+        return new DensityMask(mask, request);
+    }
+
+    /**
+     * Read a region, normalize it and reduce it to a single channel containing the maximum value of each pixel
+     * across all channels.
+     */
+    private static Mat readMaxChannel(ImageData<BufferedImage> imageData, RegionRequest request,
+                                      Collection<? extends ColorTransforms.ColorTransform> channels,
+                                      TilePredictionProcessor.Normalization normalization) throws IOException {
+        var mat = ImageOps.buildImageDataOp(channels).apply(imageData, request);
+        var normalized = TilePredictionProcessor.preprocess(mat, normalization);
+        if (normalized != mat)
+            mat.close();
+        if (normalized.channels() == 1)
+            return normalized;
+        var channelMats = OpenCVTools.splitChannels(normalized);
+        normalized.close();
+        var max = channelMats.getFirst();
+        for (int i = 1; i < channelMats.size(); i++) {
+            try (var channel = channelMats.get(i)) {
+                opencv_core.max(max, channel, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Check if a tile overlaps the mask.
+     * @param tile the tile region
+     * @return true if the tile overlaps any part of the mask, or lies outside the area covered by the mask;
+     *         false if it can safely be skipped
+     */
+    boolean intersects(RegionRequest tile) {
+        double ds = request.getDownsample();
+        int x0 = (int)Math.max(0, Math.floor((tile.getX() - request.getX()) / ds));
+        int y0 = (int)Math.max(0, Math.floor((tile.getY() - request.getY()) / ds));
+        int x1 = (int)Math.min(mask.cols(), Math.ceil((tile.getMaxX() - request.getX()) / ds));
+        int y1 = (int)Math.min(mask.rows(), Math.ceil((tile.getMaxY() - request.getY()) / ds));
+        if (x1 <= x0 || y1 <= y0)
+            return true;
+        try (var roi = mask.apply(new Rect(x0, y0, x1 - x0, y1 - y0))) {
+            return opencv_core.countNonZero(roi) > 0;
+        }
+    }
+
+}
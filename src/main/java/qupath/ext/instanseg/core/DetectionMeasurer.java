@@ -35,17 +35,20 @@ class DetectionMeasurer {
     private final Collection<ObjectMeasurements.Measurements> measurements;
     private final Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures;
     private final double downsample;
+    private final MeasurementTable measurementTable;
 
     private DetectionMeasurer(TaskRunner taskRunner,
                               Collection<ObjectMeasurements.Compartments> compartments,
                               Collection<ObjectMeasurements.Measurements> measurements,
                               Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures,
-                              double downsample) {
+                              double downsample,
+                              MeasurementTable measurementTable) {
         this.taskRunner = taskRunner;
         this.shapeFeatures = shapeFeatures;
         this.compartments = compartments;
         this.measurements = measurements;
         this.downsample = downsample;
+        this.measurementTable = measurementTable;
     }
 
     /**
@@ -89,7 +92,7 @@ class DetectionMeasurer {
             var server2 = builder.build();
             List<PathTask> tasks = new ArrayList<>();
             for (var cell : objects) {
-                tasks.add(new MeasurementTask(server2, cell, downsample, featuresArray, compartments, measurements));
+                tasks.add(new MeasurementTask(server2, cell, downsample, featuresArray, compartments, measurements, measurementTable));
             }
             String message = objects.size() == 1 ? "Measuring 1 object" : "Measuring " + objects.size() + " objects";
             taskRunner.runTasks(message, tasks);
@@ -111,12 +114,13 @@ class DetectionMeasurer {
         private final ObjectMeasurements.ShapeFeatures[] featuresArray;
         private final Collection<ObjectMeasurements.Compartments> compartments;
         private final Collection<ObjectMeasurements.Measurements> measurements;
+        private final MeasurementTable measurementTable;
 
         private String lastError;
 
         private MeasurementTask(ImageServer<BufferedImage> server, PathObject detection, double downsample,
                                 ObjectMeasurements.ShapeFeatures[] featuresArray, Collection<ObjectMeasurements.Compartments> compartments,
-                                Collection<ObjectMeasurements.Measurements> measurements) {
+                                Collection<ObjectMeasurements.Measurements> measurements, MeasurementTable measurementTable) {
             this.server = server;
             this.detection = detection;
             this.downsample = downsample;
@@ -124,6 +128,7 @@ class DetectionMeasurer {
             this.featuresArray = featuresArray;
             this.compartments = compartments;
             this.measurements = measurements;
+            this.measurementTable = measurementTable;
         }
 
         @Override
@@ -137,7 +142,13 @@ class DetectionMeasurer {
                 if (featuresArray.length > 0) {
                     ObjectMeasurements.addShapeMeasurements(detection, server.getPixelCalibration(), featuresArray);
                 }
-                ObjectMeasurements.addIntensityMeasurements(server, detection, downsample, measurements, compartments);
+                // Skip intensity measurements entirely if there is nothing to measure - this avoids reading pixels
+                if (!measurements.isEmpty() && !compartments.isEmpty()) {
+                    ObjectMeasurements.addIntensityMeasurements(server, detection, downsample, measurements, compartments);
+                }
+                if (measurementTable != null) {
+                    measurementTable.addRow(detection);
+                }
             } catch (IOException e) {
                 lastError = e.getLocalizedMessage();
                 logger.error("Exception adding measurements: {}", e.getMessage(), e);
@@ -158,6 +169,7 @@ class DetectionMeasurer {
                 .toList();
         private Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures = Arrays.asList(ObjectMeasurements.ShapeFeatures.values());
         private double downsample;
+        private MeasurementTable measurementTable;
 
         /**
          * Specify the task runner used to run parallel tasks.
@@ -213,13 +225,23 @@ class DetectionMeasurer {
             return this;
         }
 
+        /**
+         * Store measurements in a shared table, rather than in the measurement list of each object.
+         * @param measurementTable The table to use, or null to store measurements in the objects.
+         * @return A modified builder.
+         */
+        public Builder measurementTable(MeasurementTable measurementTable) {
+            this.measurementTable = measurementTable;
+            return this;
+        }
+
         /**
          * Build the measurer.
          * @return An immutable detection measurer.
          */
         public DetectionMeasurer build() {
             var runner = taskRunner == null ? TaskRunnerUtils.getDefaultInstance().createTaskRunner() : taskRunner;
-            return new DetectionMeasurer(runner, compartments, measurements, shapeFeatures, downsample);
+            return new DetectionMeasurer(runner, compartments, measurements, shapeFeatures, downsample, measurementTable);
         }
     }
 }
@@ -0,0 +1,268 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import ai.djl.MalformedModelException;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.repository.zoo.Criteria;
+import ai.djl.repository.zoo.ModelNotFoundException;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.training.util.ProgressBar;
+import ai.djl.translate.TranslateException;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Default inference backend, which uses Deep Java Library to run TorchScript models.
+ * <p>
+ * The native memory used by tensors is tracked for each predictor.
+ * If the system property {@code instanseg.nativeMemoryCeilingMB} is set, a predictor is recycled (closed and
+ * recreated) whenever the tensors retained by its model after a tile has been processed exceed the ceiling.
+ * This can help contain native memory growth during long batch runs.
+ */
+final class DjlInferenceBackend implements InferenceBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(DjlInferenceBackend.class);
+
+    static final DjlInferenceBackend INSTANCE = new DjlInferenceBackend();
+
+    private DjlInferenceBackend() {}
+
+    @Override
+    public LoadedModel load(Path modelPath, Device device, boolean[] outputChannels, int nPredictors) throws IOException {
+        if (modelPath == null)
+            throw new IOException("No model file available");
+        var model = loadModel(modelPath, device, outputChannels);
+        var loadedModel = new DjlLoadedModel(model, getNativeMemoryCeilingBytes());
+        try {
+            for (int i = 0; i < nPredictors; i++) {
+                loadedModel.predictors.add(new DjlTilePredictor(loadedModel, String.valueOf(device)));
+            }
+        } catch (RuntimeException e) {
+            loadedModel.close();
+            throw e;
+        }
+        printResourceCount("Resource count after creating predictors for " + device,
+                (BaseNDManager)model.getNDManager().getParentManager());
+        return loadedModel;
+    }
+
+    /**
+     * Get the native memory ceiling from the system property {@code instanseg.nativeMemoryCeilingMB}.
+     * @return the ceiling in bytes, or -1 if no ceiling is set
+     */
+    private static long getNativeMemoryCeilingBytes() {
+        String property = System.getProperty("instanseg.nativeMemoryCeilingMB", "").strip();
+        if (property.isEmpty())
+            return -1;
+        try {
+            long mb = Long.parseLong(property);
+            return mb > 0 ? mb * 1024L * 1024L : -1;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid native memory ceiling: {}", property);
+            return -1;
+        }
+    }
+
+    private static ZooModel<Mat, Mat> loadModel(Path modelPath, Device device, boolean[] outputChannels) throws IOException {
+        String layout = "CHW";
+
+        // TODO: Remove C if not needed (added for instanseg_v0_2_0.pt) - still relevant?
+        String layoutOutput = "CHW";
+
+        try {
+            return Criteria.builder()
+                    .setTypes(Mat.class, Mat.class)
+                    .optModelUrls(String.valueOf(modelPath.toUri()))
+                    .optProgress(new ProgressBar())
+                    .optDevice(device) // Remove this line if devices are problematic!
+                    .optTranslator(new MatTranslator(layout, layoutOutput, outputChannels))
+                    .build()
+                    .loadModel();
+        } catch (ModelNotFoundException | MalformedModelException e) {
+            throw new IOException("Unable to load model from " + modelPath + " on " + device, e);
+        }
+    }
+
+    /**
+     * Print resource count for debugging purposes.
+     * If we are not logging at debug level, do nothing.
+     * @param title
+     * @param manager
+     */
+    private static void printResourceCount(String title, BaseNDManager manager) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(title);
+            manager.debugDump(2);
+        }
+    }
+
+    /**
+     * Get the number of bytes used by all arrays managed by a manager (including its sub-managers).
+     * @param manager the manager
+     * @return the number of bytes
+     */
+    static long getManagedBytes(NDManager manager) {
+        long bytes = 0;
+        for (var array : manager.getManagedArrays()) {
+            try {
+                bytes += getBytes(array);
+            } catch (RuntimeException e) {
+                // Array may have been closed by another thread
+                logger.trace("Unable to get size of array", e);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes used by the data of an array.
+     * @param array the array
+     * @return the number of bytes
+     */
+    static long getBytes(NDArray array) {
+        return array.getShape().size() * array.getDataType().getNumOfBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "DJL";
+    }
+
+    private static final class DjlLoadedModel implements LoadedModel {
+
+        private final ZooModel<Mat, Mat> model;
+        private final long ceilingBytes;
+        private final List<DjlTilePredictor> predictors = new ArrayList<>();
+
+        private DjlLoadedModel(ZooModel<Mat, Mat> model, long ceilingBytes) {
+            this.model = model;
+            this.ceilingBytes = ceilingBytes;
+        }
+
+        @Override
+        public List<TilePredictor> getPredictors() {
+            return List.copyOf(predictors);
+        }
+
+        @Override
+        public long getNativeMemoryBytes() {
+            return getManagedBytes(model.getNDManager());
+        }
+
+        /**
+         * Get the bytes used by tensors that are retained by the model, excluding any for tiles that are
+         * currently being processed.
+         */
+        private long getRetainedBytes() {
+            long bytes = getNativeMemoryBytes();
+            for (var predictor : predictors)
+                bytes -= predictor.tracker.getLiveBytes();
+            return Math.max(0, bytes);
+        }
+
+        @Override
+        public void close() {
+            predictors.forEach(TilePredictor::close);
+            var parentManager = (BaseNDManager)model.getNDManager().getParentManager();
+            model.close();
+            printResourceCount("Resource count after closing model", parentManager);
+        }
+
+    }
+
+    private static final class DjlTilePredictor implements TilePredictor {
+
+        private final DjlLoadedModel loadedModel;
+        private final String deviceName;
+        private final NativeMemoryTracker tracker = new NativeMemoryTracker();
+
+        private volatile Predictor<Mat, Mat> predictor;
+        private volatile int recycleCount;
+        private long recycleThreshold;
+
+        private DjlTilePredictor(DjlLoadedModel loadedModel, String deviceName) {
+            this.loadedModel = loadedModel;
+            this.deviceName = deviceName;
+            this.predictor = loadedModel.model.newPredictor();
+            this.recycleThreshold = loadedModel.ceilingBytes;
+        }
+
+        @Override
+        public Mat predict(Mat input) throws IOException {
+            NativeMemoryTracker.setCurrent(tracker);
+            try {
+                return predictor.predict(input);
+            } catch (TranslateException e) {
+                throw new IOException(e);
+            } finally {
+                NativeMemoryTracker.setCurrent(null);
+                if (recycleThreshold > 0)
+                    recycleIfNeeded();
+            }
+        }
+
+        /**
+         * Recycle the predictor if the model retains more native memory than permitted.
+         * If recycling doesn't bring memory below the ceiling, the memory is probably held elsewhere -
+         * so the threshold is raised to avoid recycling after every tile.
+         */
+        private void recycleIfNeeded() {
+            long retained = loadedModel.getRetainedBytes();
+            if (retained <= recycleThreshold)
+                return;
+            var previous = predictor;
+            predictor = loadedModel.model.newPredictor();
+            previous.close();
+            recycleCount++;
+            long retainedAfter = loadedModel.getRetainedBytes();
+            logger.warn("Recycled predictor on {} (retained native memory {} MB -> {} MB)",
+                    deviceName, toMB(retained), toMB(retainedAfter));
+            if (retainedAfter > loadedModel.ceilingBytes)
+                recycleThreshold = retainedAfter + loadedModel.ceilingBytes;
+            else
+                recycleThreshold = loadedModel.ceilingBytes;
+        }
+
+        private static long toMB(long bytes) {
+            return bytes / (1024L * 1024L);
+        }
+
+        @Override
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public long getTileNativeMemoryBytes() {
+            return tracker.getLastTileBytes();
+        }
+
+        @Override
+        public long getPeakNativeMemoryBytes() {
+            return tracker.getPeakBytes();
+        }
+
+        @Override
+        public int getRecycleCount() {
+            return recycleCount;
+        }
+
+        @Override
+        public void close() {
+            predictor.close();
+            if (tracker.getLiveBytes() > 0)
+                logger.warn("Native memory for {} bytes was not released by predictor on {}", tracker.getLiveBytes(), deviceName);
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A backend that loads models and creates predictors for tile inference.
+ * <p>
+ * The default backend uses Deep Java Library to run TorchScript models.
+ * Other backends can be used to run models in a different way, or to replace the model entirely -
+ * for example, {@link SyntheticInferenceBackend} generates label images without any model, which is useful
+ * for load testing.
+ */
+public interface InferenceBackend {
+
+    /**
+     * Load a model on a single device.
+     * @param modelPath path to the model file; may be null if {@link #requiresModelFile()} returns false
+     * @param device the device to use
+     * @param outputChannels boolean array of the output channels to retain, or null to retain all
+     * @param nPredictors the number of predictors to create
+     * @return the loaded model, which must be closed when no longer needed
+     * @throws IOException if the model can't be loaded
+     */
+    LoadedModel load(Path modelPath, Device device, boolean[] outputChannels, int nPredictors) throws IOException;
+
+    /**
+     * Query whether this backend needs a model file that has been downloaded.
+     * @return true if a model file is required (the default), false otherwise
+     */
+    default boolean requiresModelFile() {
+        return true;
+    }
+
+    /**
+     * Get the default backend, which uses Deep Java Library.
+     * @return the default backend
+     */
+    static InferenceBackend djl() {
+        return DjlInferenceBackend.INSTANCE;
+    }
+
+    /**
+     * A model that has been loaded on a device, along with its predictors.
+     */
+    interface LoadedModel extends AutoCloseable {
+
+        /**
+         * Get the predictors for this model.
+         * @return the predictors
+         */
+        List<TilePredictor> getPredictors();
+
+        /**
+         * Get the native memory currently used by tensors for this model, if it is known.
+         * @return the number of bytes, or -1 if unknown (the default)
+         */
+        default long getNativeMemoryBytes() {
+            return -1;
+        }
+
+        /**
+         * Close the predictors and the model, releasing any native resources.
+         */
+        @Override
+        void close();
+
+    }
+
+}
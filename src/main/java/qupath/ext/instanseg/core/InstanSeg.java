@@ -1,17 +1,15 @@
 package qupath.ext.instanseg.core;
 
 import ai.djl.Device;
-import ai.djl.inference.Predictor;
-import ai.djl.ndarray.BaseNDManager;
-import ai.djl.repository.zoo.Criteria;
-import ai.djl.training.util.ProgressBar;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.experimental.pixels.OpenCVProcessor;
 import qupath.lib.experimental.pixels.OutputHandler;
 import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.experimental.pixels.PixelProcessorUtils;
 import qupath.lib.experimental.pixels.Processor;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ColorTransforms;
@@ -20,12 +18,16 @@ import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.utils.ObjectMerger;
 import qupath.lib.objects.utils.ObjectProcessor;
 import qupath.lib.objects.utils.OverlapFixer;
 import qupath.lib.objects.utils.Tiler;
 import qupath.lib.plugins.TaskRunner;
 import qupath.lib.plugins.TaskRunnerUtils;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RoiTools;
 import qupath.lib.scripting.QP;
 import qupath.opencv.ops.ImageOps;
 
@@ -36,11 +38,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class InstanSeg {
 
@@ -52,9 +58,22 @@ public class InstanSeg {
     private final int[] outputChannels;
     private final boolean randomColors;
     private final boolean makeMeasurements;
+    private final boolean deferMeasurements;
+    private final Collection<ObjectMeasurements.Compartments> compartments;
+    private final Collection<ObjectMeasurements.Measurements> measurements;
+    private final Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures;
+    private final MeasurementTable measurementTable;
+    private final Path checkpointDirectory;
+    private final TileCache tileCache;
+    private final double emptyTileThreshold;
+    private final boolean adaptiveTiling;
+    private final double cascadeFactor;
+    private final boolean warmUp;
+    private final boolean singleTileFastPath;
     private final List<ColorTransforms.ColorTransform> inputChannels;
     private final InstanSegModel model;
-    private final Device device;
+    private final List<Device> devices;
+    private final InferenceBackend backend;
     private final TaskRunner taskRunner;
     private final Class<? extends PathObject> preferredOutputClass;
 
@@ -62,6 +81,10 @@ public class InstanSeg {
     // However we might want to reinstate it, possibly as a proportion of the padding amount.
     private final int boundaryThreshold = 1;
 
+    // Detections whose measurements have been deferred, and not yet made by ensureMeasurements.
+    // Use weak references, so that we don't retain objects that have been removed from the hierarchy.
+    private final Set<PathObject> deferredObjects = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     private InstanSeg(Builder builder) {
         this.tileDims = builder.tileDims;
         this.downsample = builder.downsample; // Optional... and not advised (use the model spec instead); set <= 0 to ignore
@@ -69,11 +92,24 @@ public class InstanSeg {
         this.outputChannels = builder.outputChannels == null ? null : builder.outputChannels.clone();
         this.inputChannels = builder.channels == null ? Collections.emptyList() : List.copyOf(builder.channels);
         this.model = builder.model;
-        this.device = builder.device;
+        this.devices = List.copyOf(builder.devices);
+        this.backend = builder.backend;
         this.taskRunner = builder.taskRunner;
         this.preferredOutputClass = builder.preferredOutputClass;
         this.randomColors = builder.randomColors;
         this.makeMeasurements = builder.makeMeasurements;
+        this.deferMeasurements = builder.deferMeasurements;
+        this.compartments = builder.compartments == null ? null : List.copyOf(builder.compartments);
+        this.measurements = builder.measurements == null ? null : List.copyOf(builder.measurements);
+        this.shapeFeatures = builder.shapeFeatures == null ? null : List.copyOf(builder.shapeFeatures);
+        this.measurementTable = builder.measurementTable;
+        this.checkpointDirectory = builder.checkpointDirectory;
+        this.tileCache = builder.tileCache;
+        this.emptyTileThreshold = builder.skipEmptyTiles ? builder.emptyTileThreshold : -1;
+        this.adaptiveTiling = builder.adaptiveTiling;
+        this.cascadeFactor = builder.cascadeFactor;
+        this.warmUp = builder.warmUp;
+        this.singleTileFastPath = builder.singleTileFastPath;
     }
 
     /**
@@ -97,10 +133,8 @@ public class InstanSeg {
     public InstanSegResults detectObjects(Collection<? extends PathObject> pathObjects) {
         var imageData = QP.getCurrentImageData();
         var results = runInstanSeg(imageData, pathObjects);
-        if (makeMeasurements) {
-            for (var pathObject : pathObjects) {
-                makeMeasurements(imageData, pathObject.getChildObjects());
-            }
+        for (var pathObject : pathObjects) {
+            measureOrDefer(imageData, pathObject.getChildObjects(), taskRunner);
         }
         return results;
     }
@@ -113,13 +147,79 @@ public class InstanSeg {
             throws IllegalArgumentException {
         validateImageAndObjectsOrThrow(imageData, pathObjects);
         var results = runInstanSeg(imageData, pathObjects);
-        if (makeMeasurements) {
-            var detections = pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList();
-            makeMeasurements(imageData, detections);
-        }
+        measureOrDefer(imageData, pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList(), taskRunner);
+        return results;
+    }
+
+    /**
+     * Run inference for a collection of PathObjects associated with the specified image, using a model that has
+     * already been loaded.
+     * <p>
+     * This avoids the cost of loading the model for every call, which is important when processing many images.
+     * @param session a session created by {@link #openSession()}, which must be compatible with this InstanSeg instance
+     * @throws IllegalArgumentException if the image or objects are null, if the objects are not found within the image's hierarchy,
+     *                                  or if the session uses a different model, devices or output channels
+     */
+    public InstanSegResults detectObjects(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                          Collection<? extends PathObject> pathObjects) throws IllegalArgumentException {
+        validateSessionOrThrow(session, imageData, pathObjects);
+        var results = runInstanSeg(session, imageData, pathObjects, taskRunner);
+        measureOrDefer(imageData, pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList(), taskRunner);
         return results;
     }
 
+    /**
+     * Run inference using a session and a specific TaskRunner, throwing an exception if processing doesn't
+     * complete successfully.
+     * This is used to process several images concurrently, since each image needs its own TaskRunner - and the
+     * caller needs to know whether the results are complete before saving them.
+     * @throws InterruptedException if processing was interrupted
+     * @throws Exception if processing failed, or any tiles failed
+     */
+    InstanSegResults detectObjectsOrThrow(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                          Collection<? extends PathObject> pathObjects, TaskRunner taskRunner) throws Exception {
+        validateSessionOrThrow(session, imageData, pathObjects);
+        var results = runInstanSegOrThrow(session, imageData, pathObjects, taskRunner);
+        if (results.wasInterrupted())
+            throw new InterruptedException("InstanSeg was interrupted");
+        if (results.nTilesFailed() > 0)
+            throw new IOException(results.nTilesFailed() + " of " + results.nTilesProcessed() + " tiles failed");
+        measureOrDefer(imageData, pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList(), taskRunner);
+        return results;
+    }
+
+    private void validateSessionOrThrow(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                        Collection<? extends PathObject> pathObjects) throws IllegalArgumentException {
+        validateImageAndObjectsOrThrow(imageData, pathObjects);
+        Objects.requireNonNull(session, "No session available");
+        if (!session.isCompatible(backend, getModelFile().orElse(null), devices, getOutputChannelArray())) {
+            throw new IllegalArgumentException("Session is not compatible with this InstanSeg instance");
+        }
+    }
+
+    /**
+     * Load the model, ready to run inference.
+     * <p>
+     * The session can be reused for any number of images, and must be closed when it is no longer needed.
+     * The number of predictors can be set with the system property {@code instanseg.numPredictors}.
+     * @return a new session
+     * @throws IOException if the model has not been downloaded, or can't be loaded
+     */
+    public InstanSegSession openSession() throws IOException {
+        // Provide some way to change the number of predictors, even if this can't be specified through the UI
+        // See https://forum.image.sc/t/instanseg-under-utilizing-cpu-only-2-3-cores/104496/7
+        return openSession(Integer.parseInt(System.getProperty("instanseg.numPredictors", "1")));
+    }
+
+    InstanSegSession openSession(int nPredictors) throws IOException {
+        var modelFile = getModelFile();
+        if (modelFile.isEmpty() && backend.requiresModelFile()) {
+            throw new IOException("Model " + model + " is not available locally");
+        }
+        return InstanSegSession.create(this, backend, modelFile.orElse(null), devices, getOutputChannelArray(),
+                Math.max(1, nPredictors));
+    }
+
     private void validateImageAndObjectsOrThrow(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
         Objects.requireNonNull(imageData, "No imageData available");
         Objects.requireNonNull(pathObjects, "No objects available");
@@ -139,33 +239,131 @@ public class InstanSeg {
     }
 
 
+    /**
+     * Make any measurements that are still missing for the specified detections.
+     * <p>
+     * This is intended for use with {@link Builder#deferMeasurements(boolean)}, where detection skips measurement
+     * entirely. It should be called before the measurements are needed (e.g. before classification or export),
+     * and only measures objects that were detected by this InstanSeg instance and whose measurements were deferred
+     * and haven't been made yet - so it is cheap to call repeatedly.
+     * Other objects are ignored, even if they don't have any measurements.
+     * @param imageData The ImageData for making measurements.
+     * @param detections The detections to measure; their child objects are not included automatically.
+     */
+    public void ensureMeasurements(ImageData<BufferedImage> imageData, Collection<? extends PathObject> detections) {
+        Objects.requireNonNull(imageData, "No imageData available");
+        var unmeasured = detections.stream()
+                .filter(deferredObjects::contains)
+                .toList();
+        if (unmeasured.isEmpty())
+            return;
+        makeMeasurements(imageData, unmeasured, taskRunner);
+        unmeasured.forEach(deferredObjects::remove);
+    }
+
+    /**
+     * Make measurements for new detections if required, or record them so that they can be measured later
+     * by {@link #ensureMeasurements(ImageData, Collection)}.
+     */
+    private void measureOrDefer(ImageData<BufferedImage> imageData, Collection<? extends PathObject> detections,
+                                TaskRunner taskRunner) {
+        if (!makeMeasurements)
+            return;
+        if (deferMeasurements)
+            deferredObjects.addAll(detections);
+        else
+            makeMeasurements(imageData, detections, taskRunner);
+    }
+
+    /**
+     * Copy any measurements stored in the measurement table back to the detections of an image.
+     * <p>
+     * This must be called before the image data is saved if a {@link Builder#measurementTable(MeasurementTable)}
+     * is used, because the table is not saved with the image and the measurement lists of the detections are
+     * otherwise empty.
+     * It does nothing if no measurement table is used.
+     * @param imageData The ImageData containing the detections.
+     */
+    public void restoreMeasurements(ImageData<BufferedImage> imageData) {
+        Objects.requireNonNull(imageData, "No imageData available");
+        if (measurementTable == null || measurementTable.size() == 0)
+            return;
+        measurementTable.restoreMeasurements(imageData.getHierarchy().getDetectionObjects());
+    }
+
+    /**
+     * Copy any measurements stored in the measurement table back to the detections of an image, and then remove
+     * them from the table.
+     * This is useful when the image is about to be saved and closed, so the table no longer needs them.
+     * @param imageData The ImageData containing the detections.
+     */
+    void restoreAndRemoveMeasurements(ImageData<BufferedImage> imageData) {
+        Objects.requireNonNull(imageData, "No imageData available");
+        if (measurementTable == null || measurementTable.size() == 0)
+            return;
+        var detections = imageData.getHierarchy().getDetectionObjects();
+        measurementTable.restoreMeasurements(detections);
+        measurementTable.removeAll(detections);
+    }
+
     /**
      * Utility function to make measurements for the objects created by InstanSeg.
      * @param imageData The ImageData for making measurements.
      * @param detections The objects to measure.
+     * @param taskRunner The TaskRunner used to parallelize measurement.
      */
-    private void makeMeasurements(ImageData<BufferedImage> imageData, Collection<? extends PathObject> detections) {
-        double downsample = model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
-        DetectionMeasurer.builder()
+    private void makeMeasurements(ImageData<BufferedImage> imageData, Collection<? extends PathObject> detections,
+                                  TaskRunner taskRunner) {
+        double downsample = getPreferredDownsample(imageData);
+        var builder = DetectionMeasurer.builder()
                 .taskRunner(taskRunner)
-                .downsample(downsample)
-                .build()
-                .makeMeasurements(imageData, detections);
+                .downsample(downsample);
+        if (compartments != null)
+            builder.compartments(compartments);
+        if (measurements != null)
+            builder.measurements(measurements);
+        if (shapeFeatures != null)
+            builder.shapeFeatures(shapeFeatures);
+        builder.measurementTable(measurementTable)
+                .build().makeMeasurements(imageData, detections);
     }
 
     private InstanSegResults runInstanSeg(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
-
+        if (getModelFile().isEmpty() && backend.requiresModelFile()) {
+            return InstanSegResults.emptyInstance();
+        }
         long startTime = System.currentTimeMillis();
+        try (var session = openSession()) {
+            return runInstanSeg(session, imageData, pathObjects, taskRunner);
+        } catch (Exception e) {
+            logger.error("Error running InstanSeg", e);
+            return new InstanSegResults(0, 0, 0, 0, 0,
+                    System.currentTimeMillis() - startTime, e instanceof InterruptedException, Map.of(), Map.of(), null, null);
+        }
+    }
 
-        Optional<Path> oModelPath = model.getPath();
-        if (oModelPath.isEmpty()) {
-            return InstanSegResults.emptyInstance();
+    private InstanSegResults runInstanSeg(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                          Collection<? extends PathObject> pathObjects, TaskRunner taskRunner) {
+        long startTime = System.currentTimeMillis();
+        try {
+            return runInstanSegOrThrow(session, imageData, pathObjects, taskRunner);
+        } catch (Exception e) {
+            logger.error("Error running InstanSeg", e);
+            return new InstanSegResults(0, 0, 0, 0, 0,
+                    System.currentTimeMillis() - startTime, e instanceof InterruptedException, Map.of(), Map.of(), null, null);
         }
-        Path modelPath = oModelPath.get().resolve("instanseg.pt");
+    }
 
-        // Provide some way to change the number of predictors, even if this can't be specified through the UI
-        // See https://forum.image.sc/t/instanseg-under-utilizing-cpu-only-2-3-cores/104496/7
-        int nPredictors = Integer.parseInt(System.getProperty("instanseg.numPredictors", "1"));
+    private InstanSegResults runInstanSegOrThrow(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                                 Collection<? extends PathObject> pathObjects, TaskRunner taskRunner)
+            throws Exception {
+
+        long startTime = System.currentTimeMillis();
+
+        // Existing detections will be replaced, so we don't need to keep their measurements
+        if (measurementTable != null)
+            measurementTable.removeAll(pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList());
+        long residentBytesStart = NativeMemoryTracker.getResidentBytes();
 
         // Optionally pad images so that every tile has the required size.
         // This is useful if the model requires a specific input size - but InstanSeg should be able to handle this
@@ -174,10 +372,10 @@ public class InstanSeg {
         if (padToInputSize) {
             logger.warn("Padding to input size is turned on - this is likely to be slower (but could help fix any issues)");
         }
-        String layout = "CHW";
 
-        // TODO: Remove C if not needed (added for instanseg_v0_2_0.pt) - still relevant?
-        String layoutOutput = "CHW";
+        // Optionally pad tiles to one of a small number of sizes, so that the model sees only a few distinct shapes
+        // (which may be more efficient than using every possible shape, while wasting less effort than full padding)
+        var shapeBuckets = createShapeBuckets();
 
         // Get the downsample - this may be specified by the user, or determined from the model spec
         if (!imageData.getServerMetadata().pixelSizeCalibrated()) {
@@ -191,88 +389,425 @@ public class InstanSeg {
             downsample = 1.0;
             logger.debug("No pixel calibration - defaulting to a downsample of 1.0");
         } else {
-            downsample = this.model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
+            downsample = getPreferredDownsample(imageData);
             logger.debug("Calling InstanSeg with calculated downsample {}", downsample);
         }
 
-        // Create an int[] representing a boolean array of channels to use
-        boolean[] outputChannelArray = null;
-        if (outputChannels != null && outputChannels.length > 0) {
-            outputChannelArray = new boolean[model.getOutputChannels().get()]; // safe to call get because of previous checks
-            for (int c : outputChannels) {
-                if (c < 0 || c >= outputChannelArray.length) {
-                    throw new IllegalArgumentException("Invalid channel index: " + c);
-                }
-                outputChannelArray[c] = true;
-            }
-        }
-
         // If no input channels are specified, use all channels
         var inputChannels = getInputChannels(imageData);
 
-        try (var model = Criteria.builder()
-                .setTypes(Mat.class, Mat.class)
-                .optModelUrls(String.valueOf(modelPath.toUri()))
-                .optProgress(new ProgressBar())
-                .optDevice(device) // Remove this line if devices are problematic!
-                .optTranslator(new MatTranslator(layout, layoutOutput, outputChannelArray))
-                .build()
-                .loadModel()) {
-
-            BaseNDManager baseManager = (BaseNDManager)model.getNDManager();
-            printResourceCount("Resource count before prediction",
-                    (BaseNDManager)baseManager.getParentManager());
-            baseManager.debugDump(2);
-            BlockingQueue<Predictor<Mat, Mat>> predictors = new ArrayBlockingQueue<>(nPredictors);
-
-            try {
-                for (int i = 0; i < nPredictors; i++) {
-                    predictors.put(model.newPredictor());
+        // Regions that fit inside a single tile don't need tiling, merging or a separate read for normalization
+        if (canUseSingleTileFastPath(padToInputSize, shapeBuckets)) {
+            var requests = createSingleTileRequests(imageData, pathObjects, downsample);
+            if (requests != null) {
+                logger.debug("Using single tile fast path for {} regions", requests.size());
+                return runSingleTiles(session, imageData, requests, inputChannels, startTime, residentBytesStart);
+            }
+        }
+
+        TileCheckpoint checkpoint = null;
+        try {
+            checkpoint = openCheckpoint(imageData, downsample, inputChannels, padToInputSize, shapeBuckets);
+            long warmUpMillis = 0;
+            if (warmUp && !debugTiles())
+                warmUpMillis = session.warmUp(tileDims, tileDims, inputChannels.size());
+            var cacheKeyPrefix = getTileCacheKeyPrefix();
+            boolean alignToImage = cacheKeyPrefix != null;
+            var tiler = createTiler(downsample, tileDims, padding, adaptiveTiling, alignToImage);
+            var predictionProcessor = createProcessor(session, inputChannels, tileDims, padToInputSize,
+                    shapeBuckets, checkpoint, tileCache, cacheKeyPrefix, emptyTileThreshold, cascadeFactor);
+            var stageTimes = predictionProcessor instanceof TilePredictionProcessor p ? p.getStageTimes() : new StageTimes();
+            var outputHandler = createOutputHandler(preferredOutputClass, randomColors, boundaryThreshold, stageTimes);
+            var postProcessor = timed(createPostProcessor(), stageTimes);
+
+            var processor = OpenCVProcessor.builder(predictionProcessor)
+                    .imageSupplier((parameters) -> ImageOps.buildImageDataOp(inputChannels)
+                            .apply(parameters.getImageData(), parameters.getRegionRequest()))
+                    .tiler(tiler)
+                    .outputHandler(outputHandler)
+                    .padding((int)Math.round(padding * downsample))
+                    .postProcess(postProcessor)
+                    .downsample(downsample)
+                    .build();
+
+            if (alignToImage) {
+                // Tile the grid-aligned parents, so that overlapping or edited regions share tiles in the cache
+                var gridParents = createGridAlignedParents(pathObjects, getTileStep(downsample, tileDims, padding));
+                processor.processObjects(taskRunner, imageData, gridParents.values());
+                moveDetectionsToParents(gridParents);
+            } else {
+                processor.processObjects(taskRunner, imageData, pathObjects);
+            }
+            int nObjects = pathObjects.stream().mapToInt(PathObject::nChildObjects).sum();
+            InstanSegMetrics.OBJECTS.increment(nObjects);
+            if (predictionProcessor instanceof TilePredictionProcessor tileProcessor) {
+                if (tileProcessor.getTilesResumedCount() > 0) {
+                    logger.info("Resumed {} tiles from checkpoint", tileProcessor.getTilesResumedCount());
+                }
+                if (tileProcessor.getTilesCachedCount() > 0) {
+                    logger.info("Reused {} tiles from cache", tileProcessor.getTilesCachedCount());
                 }
+                if (checkpoint != null && tileProcessor.getTilesFailedCount() == 0 && !tileProcessor.wasInterrupted()) {
+                    // Finished successfully, so we don't need the checkpoint any more
+                    checkpoint.delete();
+                }
+                var nativeMemory = new InstanSegResults.NativeMemoryStats(
+                        tileProcessor.getPeakTileNativeMemoryBytes(),
+                        session.getNativeMemoryBytes(),
+                        residentBytesStart,
+                        NativeMemoryTracker.getResidentBytes(),
+                        tileProcessor.getPredictorsRecycledCount());
+                logger.debug("Native memory: {}", nativeMemory);
+                return new InstanSegResults(
+                        tileProcessor.getPixelsProcessedCount(),
+                        tileProcessor.getTilesProcessedCount(),
+                        tileProcessor.getTilesFailedCount(),
+                        tileProcessor.getTilesSkippedCount(),
+                        nObjects,
+                        System.currentTimeMillis() - startTime,
+                        tileProcessor.wasInterrupted(),
+                        tileProcessor.getTilesPerDeviceCount(),
+                        stageTimes.getMillis(),
+                        nativeMemory,
+                        new InstanSegResults.LatencyStats(
+                                warmUpMillis,
+                                tileProcessor.getFirstTileMillis(),
+                                tileProcessor.getSteadyStateTileMillis())
+                );
+            } else {
+                return InstanSegResults.emptyInstance();
+            }
+        } finally {
+            // Retain the checkpoint if processing didn't complete, so that it can be resumed
+            if (checkpoint != null)
+                checkpoint.close();
+            InstanSegMetrics.RUNS.increment();
+            InstanSegMetrics.RUN_TIME.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTime));
+        }
+    }
 
-                printResourceCount("Resource count after creating predictors",
-                        (BaseNDManager)baseManager.getParentManager());
+    /**
+     * Check whether the single tile fast path can be used.
+     * This isn't possible with options that change how tiles are inferred, or that are only meaningful when
+     * there are many tiles (checkpointing, skipping empty tiles and the coarse-to-fine cascade).
+     */
+    private boolean canUseSingleTileFastPath(boolean padToInputSize, ShapeBuckets shapeBuckets) {
+        return singleTileFastPath && !padToInputSize && shapeBuckets == null && !debugTiles() &&
+                checkpointDirectory == null && emptyTileThreshold <= 0 && cascadeFactor <= 1;
+    }
 
-                var tiler = createTiler(downsample, tileDims, padding);
-                var predictionProcessor = createProcessor(predictors, inputChannels, tileDims, padToInputSize);
-                var outputHandler = createOutputHandler(preferredOutputClass, randomColors, boundaryThreshold);
-                var postProcessor = createPostProcessor();
+    /**
+     * Create a region request for each parent object, if every parent (with padding) fits inside a single tile.
+     * @return the requests, or null if any parent is too large or has no ROI
+     */
+    private Map<PathObject, RegionRequest> createSingleTileRequests(ImageData<BufferedImage> imageData,
+                                                                    Collection<? extends PathObject> pathObjects,
+                                                                    double downsample) {
+        var server = imageData.getServer();
+        double pad = padding * downsample;
+        Map<PathObject, RegionRequest> requests = new LinkedHashMap<>();
+        for (var parent : pathObjects) {
+            var roi = parent.getROI();
+            if (roi == null)
+                return null;
+            int x = (int)Math.max(0, Math.floor(roi.getBoundsX() - pad));
+            int y = (int)Math.max(0, Math.floor(roi.getBoundsY() - pad));
+            int x2 = (int)Math.min(server.getWidth(), Math.ceil(roi.getBoundsX() + roi.getBoundsWidth() + pad));
+            int y2 = (int)Math.min(server.getHeight(), Math.ceil(roi.getBoundsY() + roi.getBoundsHeight() + pad));
+            if ((x2 - x) / downsample > tileDims || (y2 - y) / downsample > tileDims)
+                return null;
+            requests.put(parent, RegionRequest.createInstance(imageData.getServerPath(), downsample,
+                    x, y, x2 - x, y2 - y, roi.getZ(), roi.getT()));
+        }
+        return requests.isEmpty() ? null : requests;
+    }
 
-                var processor = OpenCVProcessor.builder(predictionProcessor)
-                        .imageSupplier((parameters) -> ImageOps.buildImageDataOp(inputChannels)
-                                .apply(parameters.getImageData(), parameters.getRegionRequest()))
-                        .tiler(tiler)
-                        .outputHandler(outputHandler)
-                        .padding((int)Math.round(padding * downsample))
-                        .postProcess(postProcessor)
-                        .downsample(downsample)
-                        .build();
+    /**
+     * Run InstanSeg with a single forward pass for each parent region.
+     * <p>
+     * Pixels are read through the image server, so any tiles already cached by the viewer are reused.
+     * Normalization is computed from the same pixels, and tiles are not merged - although overlaps are still
+     * resolved, since clipping objects to the parent ROI can create fragments.
+     * If a tile cache is available, it is used to avoid repeating inference (but not reading pixels, since these
+     * are needed for normalization).
+     */
+    private InstanSegResults runSingleTiles(InstanSegSession session, ImageData<BufferedImage> imageData,
+                                            Map<PathObject, RegionRequest> requests,
+                                            Collection<? extends ColorTransforms.ColorTransform> inputChannels,
+                                            long startTime, long residentBytesStart) {
+        var stageTimes = new StageTimes();
+        var outputHandler = createOutputHandler(preferredOutputClass, randomColors, boundaryThreshold, stageTimes);
+        var fixer = createOverlapFixer();
+        var dataOp = ImageOps.buildImageDataOp(inputChannels);
+        var predictors = session.getPredictors();
+        var cacheKeyPrefix = getTileCacheKeyPrefix();
+        Map<String, Integer> nTilesPerDevice = new TreeMap<>();
+        long nPixels = 0;
+        int nTilesProcessed = 0;
+        int nTilesCached = 0;
+        int nTilesFailed = 0;
+        int nRecycled = 0;
+        long peakTileBytes = -1;
+        double firstTileMillis = Double.NaN;
+        double steadyStateMillis = 0;
+        int nSteadyState = 0;
+        boolean wasInterrupted = false;
+        try {
+            for (var entry : requests.entrySet()) {
+                var parent = entry.getKey();
+                var request = entry.getValue();
+                nTilesProcessed++;
+                InstanSegMetrics.TILES.increment();
+
+                long startRead = StageTimes.start();
+                Mat mat;
+                try {
+                    mat = dataOp.apply(imageData, request);
+                } catch (IOException e) {
+                    logger.error("Error reading region {}", request, e);
+                    nTilesFailed++;
+                    InstanSegMetrics.TILES_FAILED.increment();
+                    continue;
+                }
+                stageTimes.record(StageTimes.READ, startRead);
+
+                long startNormalize = StageTimes.start();
+                var norm = TilePredictionProcessor.getNormalization(mat, parent.getROI(), request);
+                mat = TilePredictionProcessor.preprocess(mat, norm);
+                stageTimes.record(StageTimes.NORMALIZE, startNormalize);
+                nPixels += mat.total();
+                InstanSegMetrics.PIXELS.increment(mat.total());
+
+                String cacheKey = cacheKeyPrefix == null ? null :
+                        createSingleTileCacheKey(cacheKeyPrefix, request, inputChannels, norm);
+                var cached = cacheKey == null ? null : tileCache.get(cacheKey);
+                if (cached != null) {
+                    nTilesCached++;
+                    handleSingleTileOutput(imageData, parent, request, cached, outputHandler, fixer, stageTimes);
+                    continue;
+                }
 
-                processor.processObjects(taskRunner, imageData, pathObjects);
-                int nObjects = pathObjects.stream().mapToInt(PathObject::nChildObjects).sum();
-                if (predictionProcessor instanceof TilePredictionProcessor tileProcessor) {
-                    return new InstanSegResults(
-                            tileProcessor.getPixelsProcessedCount(),
-                            tileProcessor.getTilesProcessedCount(),
-                            tileProcessor.getTilesFailedCount(),
-                            nObjects,
-                            System.currentTimeMillis() - startTime,
-                            tileProcessor.wasInterrupted()
-                    );
-                } else {
-                    return InstanSegResults.emptyInstance();
+                var predictor = predictors.take();
+                Mat output = null;
+                int recycleCount = predictor.getRecycleCount();
+                long startPredict = StageTimes.start();
+                InstanSegMetrics.predictStarted();
+                try {
+                    output = predictor.predict(mat);
+                } catch (IOException e) {
+                    logger.error("Error in prediction", e);
+                } finally {
+                    InstanSegMetrics.predictFinished(startPredict, output != null);
+                    nRecycled += predictor.getRecycleCount() - recycleCount;
+                    peakTileBytes = Math.max(peakTileBytes, predictor.getTileNativeMemoryBytes());
+                    predictors.put(predictor);
+                }
+                if (output == null) {
+                    nTilesFailed++;
+                    InstanSegMetrics.TILES_FAILED.increment();
+                    continue;
                 }
-            } finally {
-                for (var predictor: predictors) {
-                    predictor.close();
+                double predictMillis = stageTimes.record(StageTimes.PREDICT, startPredict) / 1e6;
+                if (Double.isNaN(firstTileMillis)) {
+                    firstTileMillis = predictMillis;
+                } else {
+                    steadyStateMillis += predictMillis;
+                    nSteadyState++;
                 }
-                printResourceCount("Resource count after prediction", (BaseNDManager)baseManager.getParentManager());
+                nTilesPerDevice.merge(predictor.getDeviceName(), 1, Integer::sum);
+                output.convertTo(output, opencv_core.CV_32S);
+                if (cacheKey != null)
+                    tileCache.put(cacheKey, output);
+                handleSingleTileOutput(imageData, parent, request, output, outputHandler, fixer, stageTimes);
             }
-        } catch (Exception e) {
-            logger.error("Error running InstanSeg", e);
-            return new InstanSegResults(0, 0, 0, 0,
-                    System.currentTimeMillis() - startTime, e instanceof InterruptedException);
+        } catch (InterruptedException e) {
+            logger.debug("Single tile inference interrupted", e);
+            wasInterrupted = true;
+        }
+        if (nTilesCached > 0) {
+            logger.info("Reused {} tiles from cache", nTilesCached);
+        }
+        int nObjects = requests.keySet().stream().mapToInt(PathObject::nChildObjects).sum();
+        long millis = System.currentTimeMillis() - startTime;
+        InstanSegMetrics.OBJECTS.increment(nObjects);
+        InstanSegMetrics.PREDICTORS_RECYCLED.increment(nRecycled);
+        InstanSegMetrics.RUNS.increment();
+        InstanSegMetrics.RUN_TIME.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        return new InstanSegResults(
+                nPixels,
+                nTilesProcessed,
+                nTilesFailed,
+                0,
+                nObjects,
+                millis,
+                wasInterrupted,
+                nTilesPerDevice,
+                stageTimes.getMillis(),
+                new InstanSegResults.NativeMemoryStats(
+                        peakTileBytes,
+                        session.getNativeMemoryBytes(),
+                        residentBytesStart,
+                        NativeMemoryTracker.getResidentBytes(),
+                        nRecycled),
+                new InstanSegResults.LatencyStats(
+                        0,
+                        firstTileMillis,
+                        nSteadyState == 0 ? Double.NaN : steadyStateMillis / nSteadyState)
+        );
+    }
+
+    /**
+     * Create objects from the labels for a single tile, and resolve any overlaps.
+     */
+    private static void handleSingleTileOutput(ImageData<BufferedImage> imageData, PathObject parent,
+                                               RegionRequest request, Mat labels,
+                                               OutputHandler<Mat, Mat, Mat> outputHandler, OverlapFixer fixer,
+                                               StageTimes stageTimes) {
+        var params = Parameters.<Mat, Mat>builder()
+                .imageData(imageData)
+                .region(request)
+                .parent(parent)
+                .build();
+        outputHandler.handleOutput(params, labels);
+
+        long startMerge = StageTimes.start();
+        var fixed = fixer.process(parent.getChildObjects());
+        parent.clearChildObjects();
+        parent.addChildObjects(fixed);
+        stageTimes.record(StageTimes.MERGE, startMerge);
+    }
+
+    /**
+     * Create the tile cache key for a tile processed by the single tile fast path.
+     * This differs from the key used with tiling, because the normalization is computed differently.
+     */
+    private static String createSingleTileCacheKey(String cacheKeyPrefix, RegionRequest request,
+                                                   Collection<? extends ColorTransforms.ColorTransform> inputChannels,
+                                                   TilePredictionProcessor.Normalization norm) {
+        return cacheKeyPrefix + "|" +
+                request.getPath() + "|" +
+                request + "|" +
+                inputChannels.stream().map(ColorTransforms.ColorTransform::getName).toList() + "|" +
+                norm + "|" +
+                "single";
+    }
+
+    /**
+     * Open a checkpoint for the specified image, if checkpointing is enabled.
+     * The checkpoint is identified by the image, model weights and all parameters that influence the tile outputs.
+     * @return the checkpoint, or null if checkpointing is disabled or not possible
+     */
+    private TileCheckpoint openCheckpoint(ImageData<BufferedImage> imageData, double downsample,
+                                          Collection<? extends ColorTransforms.ColorTransform> inputChannels,
+                                          boolean padToInputSize, ShapeBuckets shapeBuckets) {
+        if (checkpointDirectory == null || debugTiles())
+            return null;
+        var modelIdentity = getModelIdentity();
+        if (modelIdentity.isEmpty())
+            return null;
+        String key = String.join("|",
+                imageData.getServerPath(),
+                modelIdentity.get(),
+                "tileDims=" + tileDims,
+                "padding=" + padding,
+                "downsample=" + downsample,
+                "padToInputSize=" + padToInputSize,
+                "shapeBuckets=" + (padToInputSize ? null : shapeBuckets),
+                "outputChannels=" + Arrays.toString(outputChannels),
+                "inputChannels=" + inputChannels.stream().map(ColorTransforms.ColorTransform::getName).toList());
+        try {
+            return TileCheckpoint.open(checkpointDirectory, key);
+        } catch (IOException e) {
+            logger.warn("Unable to open checkpoint in {} - will continue without checkpointing", checkpointDirectory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create shape buckets if requested with the system property {@code instanseg.shapeBuckets}.
+     * This should give the number of buckets for each dimension (e.g. 4 means that tiles are padded to a quarter,
+     * half, three quarters or all of the tile size, rounded up to a valid shape for the model).
+     * @return the shape buckets, or null if tiles should not be padded to specific shapes
+     */
+    private ShapeBuckets createShapeBuckets() {
+        String property = System.getProperty("instanseg.shapeBuckets", "0").strip();
+        int nBuckets;
+        try {
+            nBuckets = Integer.parseInt(property);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid number of shape buckets: {}", property);
+            return null;
+        }
+        if (nBuckets <= 0)
+            return null;
+        var buckets = ShapeBuckets.create(tileDims, tileDims, nBuckets,
+                model == null ? null : model.getInputShapeConstraints().orElse(null));
+        logger.debug("Using {}", buckets);
+        return buckets;
+    }
+
+    /**
+     * Get the part of the tile cache key that identifies the model and output channels.
+     * @return the key prefix, or null if the tile cache should not be used
+     */
+    private String getTileCacheKeyPrefix() {
+        if (tileCache == null || debugTiles())
+            return null;
+        return getModelIdentity()
+                .map(id -> id + "|outputChannels=" + Arrays.toString(outputChannels))
+                .orElse(null);
+    }
+
+    /**
+     * Get the path to the TorchScript file for the model, if it is available locally.
+     * @return
+     */
+    private Optional<Path> getModelFile() {
+        if (model == null)
+            return Optional.empty();
+        return model.getPath().map(p -> p.resolve("instanseg.pt"));
+    }
+
+    /**
+     * Get a string identifying the model weights and the backend used to run them.
+     * Tile outputs can only be reused if this is the same.
+     * @return the identity, or empty if it can't be determined
+     */
+    private Optional<String> getModelIdentity() {
+        var identity = model == null ? Optional.<String>empty() : model.getWeightsIdentity();
+        if (backend == InferenceBackend.djl())
+            return identity;
+        // Not all backends need a model, but their outputs still need to be distinguished from one another
+        return Optional.of(identity.orElse("none") + "|backend=" + backend);
+    }
+
+    /**
+     * Get the downsample requested by the model for the specified image, or 1.0 if there is no model.
+     */
+    private double getPreferredDownsample(ImageData<BufferedImage> imageData) {
+        if (model == null)
+            return 1.0;
+        return model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
+    }
+
+    /**
+     * Create a boolean array representing the output channels to retain.
+     * @return the array, or null if all channels should be retained
+     */
+    private boolean[] getOutputChannelArray() {
+        if (outputChannels == null || outputChannels.length == 0)
+            return null;
+        int nChannels = model == null ?
+                Arrays.stream(outputChannels).max().getAsInt() + 1 :
+                model.getOutputChannels().get(); // safe to call get because of previous checks
+        var outputChannelArray = new boolean[nChannels];
+        for (int c : outputChannels) {
+            if (c < 0 || c >= outputChannelArray.length) {
+                throw new IllegalArgumentException("Invalid channel index: " + c);
+            }
+            outputChannelArray[c] = true;
         }
+        return outputChannelArray;
     }
 
     /**
@@ -284,12 +819,16 @@ public class InstanSeg {
         return System.getProperty("instanseg.debug.tiles", "false").strip().equalsIgnoreCase("true");
     }
 
-    private static Processor<Mat, Mat, Mat> createProcessor(BlockingQueue<Predictor<Mat, Mat>> predictors,
+    private static Processor<Mat, Mat, Mat> createProcessor(InstanSegSession session,
                                                             Collection<? extends ColorTransforms.ColorTransform> inputChannels,
-                                                            int tileDims, boolean padToInputSize) {
+                                                            int tileDims, boolean padToInputSize,
+                                                            ShapeBuckets shapeBuckets, TileCheckpoint checkpoint, TileCache tileCache,
+                                                            String cacheKeyPrefix, double emptyTileThreshold,
+                                                            double cascadeFactor) {
         if (debugTiles())
             return InstanSeg::createOnes;
-        return new TilePredictionProcessor(predictors, inputChannels, tileDims, tileDims, padToInputSize);
+        return new TilePredictionProcessor(session.getPredictors(), inputChannels, tileDims, tileDims, padToInputSize,
+                shapeBuckets, checkpoint, tileCache, cacheKeyPrefix, emptyTileThreshold, cascadeFactor);
     }
 
     private static Mat createOnes(Parameters<Mat, Mat> parameters) {
@@ -308,25 +847,97 @@ public class InstanSeg {
 
     private static OutputHandler<Mat, Mat, Mat> createOutputHandler(Class<? extends PathObject> preferredOutputClass,
                                                                     boolean randomColors,
-                                                                    int boundaryThreshold) {
+                                                                    int boundaryThreshold,
+                                                                    StageTimes stageTimes) {
         if (debugTiles())
             return OutputHandler.createUnmaskedObjectOutputHandler(OpenCVProcessor.createAnnotationConverter());
         var converter = new InstanSegOutputToObjectConverter(preferredOutputClass, randomColors);
         if (boundaryThreshold >= 0) {
-            return new PruneObjectOutputHandler<>(converter, boundaryThreshold);
+            return new PruneObjectOutputHandler<>(converter, boundaryThreshold, stageTimes);
         } else {
             return OutputHandler.createObjectOutputHandler(converter);
         }
     }
 
-    private static Tiler createTiler(double downsample, int tileDims, int padding) {
-        int sizeWithoutPadding = (int) Math.ceil(downsample * (tileDims - (double) padding*2));
-        return Tiler.builder(sizeWithoutPadding)
-                .alignCenter()
-                .cropTiles(false)
+    /**
+     * Create a tiler for the parent objects.
+     * <p>
+     * By default, a fixed grid of square tiles is created over the bounding box of the parent.
+     * With adaptive tiling, tiles that don't intersect the parent ROI are dropped, and the remaining tiles are
+     * cropped to the part of the ROI that they cover - so that the number of pixels inferred depends upon the
+     * area of the ROI, rather than its bounding box.
+     */
+    /**
+     * Create the tiler used to split each parent into tiles.
+     * @param alignToImage if true, tiles are aligned to the top left of the parent bounds and not cropped, so that
+     *                     they form a grid anchored to the image when used with {@link #createGridAlignedParents(Collection, int)}
+     */
+    private static Tiler createTiler(double downsample, int tileDims, int padding, boolean adaptiveTiling, boolean alignToImage) {
+        var builder = Tiler.builder(getTileStep(downsample, tileDims, padding));
+        if (alignToImage)
+            return builder.alignTopLeft().cropTiles(false).build();
+        if (adaptiveTiling) {
+            // Keep every tile that overlaps the ROI, since cropped tiles may have centroids outside it
+            builder.filterByCentroid(false);
+        }
+        return builder.alignCenter()
+                .cropTiles(adaptiveTiling)
                 .build();
     }
 
+    /**
+     * Get the size of each tile without padding, in full-resolution pixels.
+     */
+    private static int getTileStep(double downsample, int tileDims, int padding) {
+        return (int) Math.ceil(downsample * (tileDims - (double) padding*2));
+    }
+
+    /**
+     * Create temporary parent objects whose bounding boxes start on a grid anchored to the image origin.
+     * <p>
+     * Tiles are aligned to the bounding box of their parent, so this means that parents that overlap (e.g. an
+     * annotation before and after it has been edited) share the same tiles where they intersect - and the tile
+     * outputs can be reused from the cache.
+     * Each ROI is extended by a single pixel at the nearest grid point above and to the left of its bounds,
+     * which adds at most one tile per parent. Detections should be restored to the original parents with
+     * {@link #moveDetectionsToParents(Map)}, which also masks them with the original ROI.
+     * @param parents the parent objects
+     * @param tileStep the size of each tile without padding, in full-resolution pixels
+     * @return a map from each original parent with a ROI to its temporary parent
+     */
+    private static Map<PathObject, PathObject> createGridAlignedParents(Collection<? extends PathObject> parents, int tileStep) {
+        Map<PathObject, PathObject> gridParents = new LinkedHashMap<>();
+        for (var parent : parents) {
+            var roi = parent.getROI();
+            if (roi == null)
+                continue;
+            double x = Math.floor(roi.getBoundsX() / tileStep) * tileStep;
+            double y = Math.floor(roi.getBoundsY() / tileStep) * tileStep;
+            if (x != roi.getBoundsX() || y != roi.getBoundsY())
+                roi = RoiTools.union(List.of(roi, ROIs.createRectangleROI(x, y, 1, 1, roi.getImagePlane())));
+            gridParents.put(parent, PathObjects.createAnnotationObject(roi));
+        }
+        return gridParents;
+    }
+
+    /**
+     * Move the detections created for temporary grid-aligned parents to the original parents, removing any parts
+     * that are outside the original ROI.
+     * @param gridParents a map from each original parent to its temporary parent
+     */
+    private static void moveDetectionsToParents(Map<PathObject, PathObject> gridParents) {
+        for (var entry : gridParents.entrySet()) {
+            var parent = entry.getKey();
+            var roi = parent.getROI();
+            var detections = entry.getValue().getChildObjects().stream()
+                    .flatMap(p -> PixelProcessorUtils.maskObject(roi, p).stream())
+                    .toList();
+            parent.clearChildObjects();
+            parent.addChildObjects(detections);
+            parent.setLocked(true);
+        }
+    }
+
 
     /**
      * Get the input channels to use; if we don't have any specified, use all of them
@@ -345,32 +956,44 @@ public class InstanSeg {
         }
     }
 
-    private static ObjectProcessor createPostProcessor() {
+    static ObjectProcessor createPostProcessor() {
         if (debugTiles())
             return null;
         var merger = ObjectMerger.createIoMinMerger(0.5);
-        var fixer = OverlapFixer.builder()
+        return merger.andThen(createOverlapFixer());
+    }
+
+    private static OverlapFixer createOverlapFixer() {
+        return OverlapFixer.builder()
                 .clipOverlaps()
                 .keepFragments(false)
                 .sortBySolidity()
                 .build();
-        return merger.andThen(fixer);
     }
 
     /**
-     * Print resource count for debugging purposes.
-     * If we are not logging at debug level, do nothing.
-     * @param title
-     * @param manager
+     * Wrap an object processor so that the time taken to merge objects is recorded, both in the stage times
+     * and as a flight recorder event.
      */
-    private static void printResourceCount(String title, BaseNDManager manager) {
-        if (logger.isDebugEnabled()) {
-            logger.debug(title);
-            manager.debugDump(2);
-        }
+    private static ObjectProcessor timed(ObjectProcessor processor, StageTimes stageTimes) {
+        if (processor == null)
+            return null;
+        return objects -> {
+            long startMerge = StageTimes.start();
+            var event = new InstanSegEvents.Merge();
+            event.begin();
+            var merged = processor.process(objects);
+            event.end();
+            if (event.shouldCommit()) {
+                event.inputCount = objects.size();
+                event.objectCount = merged.size();
+                event.commit();
+            }
+            stageTimes.record(StageTimes.MERGE, startMerge);
+            return merged;
+        };
     }
 
-
     /**
      * A builder class for InstanSeg.
      */
@@ -387,7 +1010,21 @@ public class InstanSeg {
         private int[] outputChannels = null;
         private boolean randomColors = true;
         private boolean makeMeasurements = false;
-        private Device device = Device.fromName("cpu");
+        private boolean deferMeasurements = false;
+        private Collection<ObjectMeasurements.Compartments> compartments; // Use the DetectionMeasurer defaults if null
+        private Collection<ObjectMeasurements.Measurements> measurements;
+        private Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures;
+        private MeasurementTable measurementTable;
+        private Path checkpointDirectory;
+        private TileCache tileCache;
+        private boolean skipEmptyTiles = false;
+        private double emptyTileThreshold = 0.02;
+        private boolean adaptiveTiling = false;
+        private double cascadeFactor = -1;
+        private boolean warmUp = false;
+        private boolean singleTileFastPath = false;
+        private List<Device> devices = List.of(Device.fromName("cpu"));
+        private InferenceBackend backend = InferenceBackend.djl();
         private TaskRunner taskRunner = TaskRunnerUtils.getDefaultInstance().createTaskRunner();
         private Collection<? extends ColorTransforms.ColorTransform> channels;
         private InstanSegModel model;
@@ -612,8 +1249,7 @@ public class InstanSeg {
          * @return this builder
          */
         public Builder device(String deviceName) {
-            this.device = Device.fromName(deviceName);
-            return this;
+            return device(Device.fromName(deviceName));
         }
 
         /**
@@ -622,7 +1258,48 @@ public class InstanSeg {
          * @return this builder
          */
         public Builder device(Device device) {
-            this.device = device;
+            this.devices = List.of(device);
+            return this;
+        }
+
+        /**
+         * Set several devices to be used together.
+         * <p>
+         * A copy of the model is loaded on each device, and tiles are sent to whichever device is available next -
+         * so faster devices process more tiles. The number of predictors (set with the system property
+         * {@code instanseg.numPredictors}) applies to each device.
+         * @param devices The devices to be used
+         * @return this builder
+         */
+        public Builder devices(Collection<Device> devices) {
+            if (devices.isEmpty())
+                throw new IllegalArgumentException("At least one device is required");
+            this.devices = List.copyOf(devices);
+            return this;
+        }
+
+        /**
+         * Set several devices to be used together.
+         * @param deviceNames The names of the devices to be used (eg, "gpu0", "gpu1").
+         * @return this builder
+         * @see #devices(Collection)
+         */
+        public Builder devices(String... deviceNames) {
+            return devices(Arrays.stream(deviceNames).map(Device::fromName).toList());
+        }
+
+        /**
+         * Set the backend used to load the model and run inference.
+         * <p>
+         * The default backend uses Deep Java Library to run the TorchScript model.
+         * A {@link SyntheticInferenceBackend} can be used instead to generate objects without a model, which
+         * is useful for load testing. In that case, the model may be omitted - but then the downsample should be
+         * set explicitly, and measurements use a downsample of 1.
+         * @param backend The backend to use
+         * @return this builder
+         */
+        public Builder backend(InferenceBackend backend) {
+            this.backend = Objects.requireNonNull(backend, "Backend must not be null");
             return this;
         }
 
@@ -662,6 +1339,247 @@ public class InstanSeg {
             return this;
         }
 
+        /**
+         * Set the cell compartments used for intensity measurements.
+         * By default, all compartments are measured.
+         * @param compartments The compartments to measure; use an empty collection to skip intensity measurements
+         * @return this builder
+         */
+        public Builder measurementCompartments(Collection<ObjectMeasurements.Compartments> compartments) {
+            this.compartments = compartments;
+            return this;
+        }
+
+        /**
+         * Set the cell compartments used for intensity measurements.
+         * @param compartments The compartments to measure
+         * @return this builder
+         */
+        public Builder measurementCompartments(ObjectMeasurements.Compartments... compartments) {
+            return measurementCompartments(Arrays.asList(compartments));
+        }
+
+        /**
+         * Set the intensity measurements to make for each channel and compartment.
+         * By default, all measurements except variance are made.
+         * <p>
+         * For images with many channels, restricting this (e.g. to the mean only) can greatly reduce the
+         * number of measurements per object.
+         * @param measurements The intensity measurements to make; use an empty collection to skip intensity measurements
+         * @return this builder
+         */
+        public Builder intensityMeasurements(Collection<ObjectMeasurements.Measurements> measurements) {
+            this.measurements = measurements;
+            return this;
+        }
+
+        /**
+         * Set the intensity measurements to make for each channel and compartment.
+         * @param measurements The intensity measurements to make
+         * @return this builder
+         */
+        public Builder intensityMeasurements(ObjectMeasurements.Measurements... measurements) {
+            return intensityMeasurements(Arrays.asList(measurements));
+        }
+
+        /**
+         * Set the shape features to measure.
+         * By default, all shape features are measured.
+         * @param shapeFeatures The shape features to measure; use an empty collection to skip shape measurements
+         * @return this builder
+         */
+        public Builder shapeFeatures(Collection<ObjectMeasurements.ShapeFeatures> shapeFeatures) {
+            this.shapeFeatures = shapeFeatures;
+            return this;
+        }
+
+        /**
+         * Set the shape features to measure.
+         * @param shapeFeatures The shape features to measure
+         * @return this builder
+         */
+        public Builder shapeFeatures(ObjectMeasurements.ShapeFeatures... shapeFeatures) {
+            return shapeFeatures(Arrays.asList(shapeFeatures));
+        }
+
+        /**
+         * Store measurements in a shared columnar table, rather than in the measurement list of each object.
+         * <p>
+         * This can greatly reduce memory use when there are many objects with many measurements.
+         * <p>
+         * <b>Warning!</b> The measurement lists of the detections are cleared, and the table is <i>not</i> saved
+         * with the image data. Any measurements will be lost when the image is saved, unless
+         * {@link InstanSeg#restoreMeasurements(ImageData)} (or {@link MeasurementTable#restoreMeasurements(Collection)})
+         * is called first. {@link InstanSegBatchRunner} does this automatically before saving each image, and then
+         * removes the image's detections from the table.
+         * Rows for detections that are replaced by running InstanSeg again are removed automatically; otherwise,
+         * use {@link MeasurementTable#removeAll(Collection)} when detections are no longer needed.
+         * @param measurementTable The table to use, or null to store measurements in the objects (the default)
+         * @return this builder
+         */
+        public Builder measurementTable(MeasurementTable measurementTable) {
+            if (measurementTable != null)
+                logger.warn("Using a measurement table - measurements must be restored before saving, or they will be lost");
+            this.measurementTable = measurementTable;
+            return this;
+        }
+
+        /**
+         * Request that measurements are not made during detection, but only later when
+         * {@link InstanSeg#ensureMeasurements(ImageData, Collection)} is called.
+         * <p>
+         * This makes detection faster, and avoids the memory cost of measurements that may never be used.
+         * It has no effect unless measurements have been requested with {@link #makeMeasurements(boolean)}.
+         * <p>
+         * Deferred detections are tracked by the InstanSeg instance that created them, so the same instance must be
+         * used to make the measurements later.
+         * @param doDefer Whether measurements should be deferred
+         * @return this builder
+         */
+        public Builder deferMeasurements(boolean doDefer) {
+            this.deferMeasurements = doDefer;
+            return this;
+        }
+
+        /**
+         * Periodically save the outputs of completed tiles to a checkpoint file in the specified directory.
+         * <p>
+         * If processing is interrupted, a later run with the same image, model and parameters will reuse the
+         * completed tiles and only run inference for the tiles that are missing.
+         * The checkpoint is deleted once processing completes successfully.
+         * @param checkpointDirectory The directory for checkpoint files, or null to disable checkpointing (the default)
+         * @return this builder
+         */
+        public Builder checkpointDirectory(Path checkpointDirectory) {
+            this.checkpointDirectory = checkpointDirectory;
+            return this;
+        }
+
+        /**
+         * Reuse the outputs of tiles that have been processed previously with the same model and settings.
+         * <p>
+         * This can make it much faster to rerun InstanSeg with the same settings, including after editing an
+         * annotation or when detecting within annotations that overlap: only tiles covering new parts of the image
+         * need inference.
+         * <p>
+         * To make this possible, using a cache changes how tiles are created and normalized. Tiles form a grid
+         * anchored to the image (rather than centered on each parent, and without adaptive cropping), and
+         * normalization is computed from the whole image at low resolution (rather than from each parent ROI).
+         * Results can therefore differ slightly from those without a cache.
+         * Regions small enough for the {@linkplain #singleTileFastPath(boolean) single tile fast path} are
+         * normalized using their own ROI, so are only reused when the same region is processed again.
+         * @param tileCache The cache to use, or null to disable caching (the default)
+         * @return this builder
+         */
+        public Builder tileCache(TileCache tileCache) {
+            this.tileCache = tileCache;
+            return this;
+        }
+
+        /**
+         * Request that tiles are skipped without running inference if they appear to be empty.
+         * <p>
+         * A tile is considered empty if the standard deviation of every input channel is very low, after
+         * normalizing using the statistics of the parent object. This can save a lot of time for annotations
+         * that include large areas of background.
+         * @param doSkip Whether empty tiles should be skipped
+         * @return this builder
+         */
+        public Builder skipEmptyTiles(boolean doSkip) {
+            this.skipEmptyTiles = doSkip;
+            return this;
+        }
+
+        /**
+         * Set the threshold used to identify empty tiles, and request that they are skipped.
+         * @param threshold The minimum standard deviation of normalized pixel values (typically in the range 0-1)
+         *                  required for a tile to be processed. The default is 0.02.
+         * @return this builder
+         * @see #skipEmptyTiles(boolean)
+         */
+        public Builder skipEmptyTiles(double threshold) {
+            this.emptyTileThreshold = threshold;
+            return skipEmptyTiles(threshold > 0);
+        }
+
+        /**
+         * Request that tiles are adapted to the shape of each parent object.
+         * <p>
+         * By default, tiles form a regular grid over the bounding box of the parent object, and each tile has
+         * the same size. With adaptive tiling, tiles outside the parent ROI are dropped and tiles at the edge of
+         * the ROI are shrunk to the extent that it covers. This can greatly reduce the number of pixels that need
+         * to be processed for irregular or elongated annotations.
+         * @param doAdapt Whether tiles should be adapted to the parent ROI
+         * @return this builder
+         */
+        public Builder adaptiveTiling(boolean doAdapt) {
+            this.adaptiveTiling = doAdapt;
+            return this;
+        }
+
+        /**
+         * Request a coarse-to-fine cascade, using a default factor of 8.
+         * @param doCascade Whether to use a coarse-to-fine cascade
+         * @return this builder
+         * @see #coarseToFine(double)
+         */
+        public Builder coarseToFine(boolean doCascade) {
+            return coarseToFine(doCascade ? 8.0 : -1);
+        }
+
+        /**
+         * Request a coarse-to-fine cascade.
+         * <p>
+         * Each parent region is first read at a lower resolution, and a density mask is computed to identify areas
+         * that might contain objects. Tiles that don't overlap these areas are skipped without being read at full
+         * resolution. This can be much faster for images with sparse objects.
+         * @param factor How much coarser the first pass is than the resolution used for inference;
+         *               use a value &lt;= 1 to disable the cascade
+         * @return this builder
+         */
+        public Builder coarseToFine(double factor) {
+            this.cascadeFactor = factor;
+            return this;
+        }
+
+        /**
+         * Request that the model is warmed up before tiling starts, by running forward passes with synthetic
+         * input on every predictor.
+         * <p>
+         * This doesn't make a single run faster, but it moves the cost of optimizing the model out of tile
+         * processing - and if a session is reused, each tile shape is only warmed up once.
+         * The time taken for the first tile with each predictor is reported separately in the results, so the
+         * effect can be checked.
+         * @param doWarmUp Whether to warm up the model
+         * @return this builder
+         * @see InstanSegSession#warmUp(int, int, int)
+         */
+        public Builder warmUp(boolean doWarmUp) {
+            this.warmUp = doWarmUp;
+            return this;
+        }
+
+        /**
+         * Request a faster path for parent regions that fit inside a single tile, intended for interactive use.
+         * <p>
+         * If every parent (including the inter-tile padding around it) fits inside one tile, each is processed
+         * with a single forward pass: there is no tiling or merging, and normalization is computed from the pixels
+         * read for inference rather than from a separate image. The results should be very similar, but not
+         * necessarily identical, to those without the fast path.
+         * Larger regions are processed as usual.
+         * <p>
+         * The {@linkplain #tileCache(TileCache) tile cache} is used by the fast path, but the fast path is not
+         * used if a {@linkplain #checkpointDirectory(Path) checkpoint directory},
+         * {@linkplain #skipEmptyTiles(boolean) skipping empty tiles} or a
+         * {@linkplain #coarseToFine(double) coarse-to-fine cascade} has been requested.
+         * @param doFastPath Whether to use the fast path for small regions
+         * @return this builder
+         */
+        public Builder singleTileFastPath(boolean doFastPath) {
+            this.singleTileFastPath = doFastPath;
+            return this;
+        }
+
         /**
          * Build the InstanSeg instance.
          * @return An InstanSeg instance ready for object detection.
@@ -0,0 +1,262 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.TaskRunnerUtils;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Run InstanSeg across many images in a project, loading the model only once.
+ * <p>
+ * A single {@link InstanSegSession} is shared by all images, so tiles from several images are scheduled into the
+ * same pool of predictors. The number of images processed concurrently is bounded, as is the number of threads
+ * used for each image - so one very large image cannot starve the others, and memory use stays predictable.
+ * <p>
+ * Each image is saved as soon as it has been processed, and its result reported to an optional listener.
+ * If InstanSeg uses a {@link MeasurementTable}, measurements are copied back to the detections before saving.
+ * Failures are recorded per image, and don't prevent other images from being processed.
+ * Images that fail or are interrupted (including if any tile fails) are not saved.
+ */
+public class InstanSegBatchRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanSegBatchRunner.class);
+
+    private final InstanSeg instanSeg;
+    private final int maxConcurrentImages;
+    private final int threadsPerImage;
+    private final int nPredictors;
+    private final Function<ImageData<BufferedImage>, Collection<? extends PathObject>> objectSelector;
+    private final Consumer<ImageResult> listener;
+    private final boolean saveImages;
+
+    private InstanSegBatchRunner(Builder builder) {
+        this.instanSeg = Objects.requireNonNull(builder.instanSeg, "InstanSeg must not be null");
+        this.maxConcurrentImages = builder.maxConcurrentImages;
+        this.threadsPerImage = builder.threadsPerImage;
+        this.nPredictors = builder.nPredictors;
+        this.objectSelector = builder.objectSelector;
+        this.listener = builder.listener;
+        this.saveImages = builder.saveImages;
+    }
+
+    /**
+     * Create a builder for a batch runner.
+     * @param instanSeg the InstanSeg instance used to process each image
+     * @return a new builder
+     */
+    public static Builder builder(InstanSeg instanSeg) {
+        return new Builder(instanSeg);
+    }
+
+    /**
+     * Process all the specified images.
+     * <p>
+     * This blocks until all images have been processed, or the calling thread is interrupted.
+     * @param entries the project entries to process
+     * @return the result for each entry, in the order they were provided
+     * @throws IOException if the model can't be loaded
+     * @throws InterruptedException if the calling thread is interrupted while waiting for images to be processed
+     */
+    public Map<ProjectImageEntry<BufferedImage>, ImageResult> run(Collection<? extends ProjectImageEntry<BufferedImage>> entries)
+            throws IOException, InterruptedException {
+        Map<ProjectImageEntry<BufferedImage>, ImageResult> results = new LinkedHashMap<>();
+        if (entries.isEmpty())
+            return results;
+
+        int nImageThreads = Math.min(maxConcurrentImages, entries.size());
+        try (var session = instanSeg.openSession(nPredictors)) {
+            ExecutorService pool = Executors.newFixedThreadPool(nImageThreads,
+                    ThreadTools.createThreadFactory("instanseg-batch", true));
+            try {
+                List<Future<ImageResult>> futures = new ArrayList<>();
+                for (var entry : entries) {
+                    futures.add(pool.submit(() -> processEntry(session, entry)));
+                }
+                for (var future : futures) {
+                    try {
+                        var result = future.get();
+                        results.put(result.entry(), result);
+                    } catch (ExecutionException e) {
+                        // Shouldn't happen, since processEntry handles its own exceptions
+                        logger.error("Error running InstanSeg batch", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                throw e;
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return results;
+    }
+
+    private ImageResult processEntry(InstanSegSession session, ProjectImageEntry<BufferedImage> entry) {
+        ImageResult result;
+        ImageData<BufferedImage> imageData = null;
+        try {
+            logger.info("Running InstanSeg for {}", entry.getImageName());
+            imageData = entry.readImageData();
+            var pathObjects = objectSelector.apply(imageData);
+            // Each image needs its own TaskRunner, so that the number of threads per image is bounded
+            var taskRunner = TaskRunnerUtils.getDefaultInstance().createTaskRunner(threadsPerImage);
+            // Throws if the image couldn't be processed completely, so that we don't save partial results
+            var instanSegResults = instanSeg.detectObjectsOrThrow(session, imageData, pathObjects, taskRunner);
+            if (saveImages) {
+                // Measurements stored in a table would otherwise be lost when the image is saved -
+                // and once they have been restored, the table doesn't need to keep them
+                instanSeg.restoreAndRemoveMeasurements(imageData);
+                entry.saveImageData(imageData);
+            }
+            result = new ImageResult(entry, instanSegResults, null);
+        } catch (Exception e) {
+            logger.error("Error running InstanSeg for {}", entry.getImageName(), e);
+            result = new ImageResult(entry, null, e);
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+        } finally {
+            if (imageData != null) {
+                try {
+                    imageData.getServer().close();
+                } catch (Exception e) {
+                    logger.debug("Unable to close server for {}", entry.getImageName(), e);
+                }
+            }
+        }
+        if (listener != null) {
+            try {
+                listener.accept(result);
+            } catch (Exception e) {
+                logger.warn("Error notifying batch listener", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The result of processing a single image.
+     * @param entry the project entry
+     * @param results a summary of the InstanSeg run, or null if processing failed
+     * @param error the exception thrown during processing, or null if processing succeeded
+     */
+    public record ImageResult(ProjectImageEntry<BufferedImage> entry, InstanSegResults results, Exception error) {
+
+        /**
+         * Query if the image was processed successfully.
+         * @return true if there was no error, false otherwise
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+    }
+
+    /**
+     * A builder class for InstanSegBatchRunner.
+     */
+    public static final class Builder {
+
+        private final InstanSeg instanSeg;
+        private int maxConcurrentImages = 2;
+        private int threadsPerImage = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private int nPredictors = Integer.parseInt(System.getProperty("instanseg.numPredictors", "1"));
+        private Function<ImageData<BufferedImage>, Collection<? extends PathObject>> objectSelector =
+                imageData -> imageData.getHierarchy().getAnnotationObjects();
+        private Consumer<ImageResult> listener;
+        private boolean saveImages = true;
+
+        private Builder(InstanSeg instanSeg) {
+            this.instanSeg = instanSeg;
+        }
+
+        /**
+         * Set the maximum number of images to process at the same time.
+         * @param maxConcurrentImages The maximum number of images
+         * @return this builder
+         */
+        public Builder maxConcurrentImages(int maxConcurrentImages) {
+            this.maxConcurrentImages = Math.max(1, maxConcurrentImages);
+            return this;
+        }
+
+        /**
+         * Set the number of threads used to process each image.
+         * @param threadsPerImage The number of threads per image
+         * @return this builder
+         */
+        public Builder threadsPerImage(int threadsPerImage) {
+            this.threadsPerImage = Math.max(1, threadsPerImage);
+            return this;
+        }
+
+        /**
+         * Set the number of predictors shared by all images.
+         * @param nPredictors The number of predictors
+         * @return this builder
+         */
+        public Builder numPredictors(int nPredictors) {
+            this.nPredictors = Math.max(1, nPredictors);
+            return this;
+        }
+
+        /**
+         * Set the function used to select the parent objects for each image.
+         * By default, all annotations are used.
+         * @param objectSelector A function that returns the objects to process for an image
+         * @return this builder
+         */
+        public Builder objectSelector(Function<ImageData<BufferedImage>, Collection<? extends PathObject>> objectSelector) {
+            this.objectSelector = Objects.requireNonNull(objectSelector);
+            return this;
+        }
+
+        /**
+         * Set a listener that is notified as soon as each image has been processed.
+         * This may be called from any thread.
+         * @param listener The listener
+         * @return this builder
+         */
+        public Builder progressListener(Consumer<ImageResult> listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Set whether each image should be saved after it has been processed.
+         * @param doSave Whether to save images
+         * @return this builder
+         */
+        public Builder saveImages(boolean doSave) {
+            this.saveImages = doSave;
+            return this;
+        }
+
+        /**
+         * Build the batch runner.
+         * @return A batch runner ready to process images
+         */
+        public InstanSegBatchRunner build() {
+            return new InstanSegBatchRunner(this);
+        }
+
+    }
+
+}
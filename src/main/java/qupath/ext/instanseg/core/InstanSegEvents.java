@@ -0,0 +1,148 @@
+package qupath.ext.instanseg.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.Locale;
+
+/**
+ * Java Flight Recorder events for each stage of tile processing.
+ * <p>
+ * These are only recorded when a flight recording is running (e.g. started with
+ * {@code -XX:StartFlightRecording} or from JDK Mission Control), and are cheap otherwise.
+ * They make it possible to see where time is spent when processing a real image - including how long threads
+ * wait for a predictor to become available.
+ */
+final class InstanSegEvents {
+
+    private InstanSegEvents() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Base class for events that relate to a single tile.
+     */
+    @Category({"QuPath", "InstanSeg"})
+    @StackTrace(false)
+    abstract static class TileEvent extends Event {
+
+        @Label("Region")
+        @Description("The region of the image, in full-resolution pixel coordinates")
+        String region;
+
+        @Label("Tile Width")
+        @Description("Width of the tile, in pixels at the requested downsample")
+        int tileWidth;
+
+        @Label("Tile Height")
+        @Description("Height of the tile, in pixels at the requested downsample")
+        int tileHeight;
+
+        /**
+         * End the event, and commit it if it is enabled and exceeds any duration threshold.
+         * Other fields should be set before calling this method.
+         * @param request the region request for the tile
+         * @param width the tile width
+         * @param height the tile height
+         */
+        void finish(RegionRequest request, int width, int height) {
+            end();
+            if (shouldCommit()) {
+                region = request == null ? null : String.format(Locale.ROOT, "x=%d, y=%d, w=%d, h=%d, z=%d, t=%d, downsample=%.3f",
+                        request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+                        request.getZ(), request.getT(), request.getDownsample());
+                tileWidth = width;
+                tileHeight = height;
+                commit();
+            }
+        }
+
+    }
+
+    /**
+     * Base class for events that relate to a tile and create objects.
+     */
+    abstract static class TileObjectsEvent extends TileEvent {
+
+        @Label("Object Count")
+        @Description("Number of objects after this stage")
+        int objectCount;
+
+    }
+
+    @Name("qupath.instanseg.ReadTile")
+    @Label("Read Tile")
+    @Description("Read the pixels for a tile")
+    static class ReadTile extends TileEvent {}
+
+    @Name("qupath.instanseg.Normalize")
+    @Label("Normalize Tile")
+    @Description("Compute the normalization for a parent region (if needed) and apply it to a tile")
+    static class Normalize extends TileEvent {}
+
+    @Name("qupath.instanseg.ComputeNormalization")
+    @Label("Compute Normalization")
+    @Description("Compute normalization percentiles for a parent region; this happens once per parent object")
+    @Category({"QuPath", "InstanSeg"})
+    @StackTrace(false)
+    static class ComputeNormalization extends Event {
+
+        @Label("Region")
+        @Description("The bounding box of the parent region, in full-resolution pixel coordinates")
+        String region;
+
+    }
+
+    @Name("qupath.instanseg.WaitForPredictor")
+    @Label("Wait For Predictor")
+    @Description("Wait for a predictor to become available - long waits indicate contention")
+    static class WaitForPredictor extends TileEvent {
+
+        @Label("Available Predictors")
+        @Description("Number of idle predictors when the wait began")
+        int availablePredictors;
+
+    }
+
+    @Name("qupath.instanseg.Predict")
+    @Label("Predict Tile")
+    @Description("Run inference for a tile")
+    static class Predict extends TileEvent {
+
+        @Label("Device")
+        String device;
+
+    }
+
+    @Name("qupath.instanseg.Convert")
+    @Label("Convert Tile")
+    @Description("Convert the labels for a tile to objects")
+    static class Convert extends TileObjectsEvent {}
+
+    @Name("qupath.instanseg.Prune")
+    @Label("Prune Tile")
+    @Description("Remove objects at tile boundaries and clip objects to the parent region")
+    static class Prune extends TileObjectsEvent {}
+
+    @Name("qupath.instanseg.Merge")
+    @Label("Merge Objects")
+    @Description("Merge objects from overlapping tiles and fix overlaps, for one parent object")
+    @Category({"QuPath", "InstanSeg"})
+    @StackTrace(false)
+    static class Merge extends Event {
+
+        @Label("Input Object Count")
+        int inputCount;
+
+        @Label("Object Count")
+        @Description("Number of objects after merging")
+        int objectCount;
+
+    }
+
+}
@@ -0,0 +1,141 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics recorded by InstanSeg in the {@linkplain MetricsRegistry#getDefault() default registry}.
+ * <p>
+ * Sinks are configured from system properties the first time this class is used - see {@link MetricsRegistry}.
+ */
+final class InstanSegMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanSegMetrics.class);
+
+    private static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+
+    static final MetricsRegistry.Counter TILES = REGISTRY.counter(
+            "instanseg_tiles_total", "Tiles processed, including any that failed or were skipped");
+    static final MetricsRegistry.Counter TILES_FAILED = REGISTRY.counter(
+            "instanseg_tiles_failed_total", "Tiles that failed during inference");
+    static final MetricsRegistry.Counter TILES_SKIPPED = REGISTRY.counter(
+            "instanseg_tiles_skipped_total", "Tiles skipped without inference because they appeared to be empty");
+    static final MetricsRegistry.Counter PIXELS = REGISTRY.counter(
+            "instanseg_pixels_total", "Pixels passed to the model for inference");
+    static final MetricsRegistry.Counter OBJECTS = REGISTRY.counter(
+            "instanseg_objects_total", "Objects detected");
+    static final MetricsRegistry.Counter RUNS = REGISTRY.counter(
+            "instanseg_runs_total", "Calls to detect objects in an image");
+    static final MetricsRegistry.Counter PREDICTORS_RECYCLED = REGISTRY.counter(
+            "instanseg_predictors_recycled_total", "Predictors recycled because native memory exceeded the ceiling");
+
+    static final MetricsRegistry.Timer RUN_TIME = REGISTRY.timer(
+            "instanseg_run_seconds", "time to detect objects in an image");
+    static final MetricsRegistry.Timer PREDICT_TIME = REGISTRY.timer(
+            "instanseg_predict_seconds", "time to run inference for a tile");
+    static final MetricsRegistry.Timer WAIT_TIME = REGISTRY.timer(
+            "instanseg_predictor_wait_seconds", "time spent waiting for a predictor to become available");
+    static final MetricsRegistry.Timer WARM_UP_TIME = REGISTRY.timer(
+            "instanseg_warmup_seconds", "time to warm up all predictors in a session for a tile shape");
+
+    private static final Set<InstanSegSession> SESSIONS = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger PREDICTORS_BUSY = new AtomicInteger();
+    private static final AtomicInteger PREDICTORS_WAITING = new AtomicInteger();
+
+    static {
+        REGISTRY.gauge("instanseg_sessions", "Open sessions", SESSIONS::size);
+        REGISTRY.gauge("instanseg_predictors", "Predictors in all open sessions",
+                InstanSegMetrics::countPredictors);
+        REGISTRY.gauge("instanseg_predictors_busy", "Predictors currently running inference",
+                PREDICTORS_BUSY::get);
+        REGISTRY.gauge("instanseg_predictor_utilization", "Fraction of predictors currently running inference",
+                () -> {
+                    int n = countPredictors();
+                    return n == 0 ? 0 : PREDICTORS_BUSY.get() / (double)n;
+                });
+        REGISTRY.gauge("instanseg_predictor_queue_depth", "Tiles waiting for a predictor to become available",
+                PREDICTORS_WAITING::get);
+        REGISTRY.gauge("instanseg_native_memory_bytes", "Native memory used by tensors in all open sessions, if known",
+                () -> SESSIONS.stream().mapToLong(InstanSegSession::getNativeMemoryBytes).filter(b -> b > 0).sum());
+        REGISTRY.gauge("instanseg_process_resident_bytes", "Resident set size of the process, if known",
+                NativeMemoryTracker::getResidentBytes);
+        configureSinks();
+    }
+
+    private InstanSegMetrics() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    private static int countPredictors() {
+        return SESSIONS.stream().mapToInt(InstanSegSession::getPredictorCount).sum();
+    }
+
+    static void sessionOpened(InstanSegSession session) {
+        SESSIONS.add(session);
+    }
+
+    static void sessionClosed(InstanSegSession session) {
+        SESSIONS.remove(session);
+    }
+
+    static void waitStarted() {
+        PREDICTORS_WAITING.incrementAndGet();
+    }
+
+    static void waitFinished(long startNanos) {
+        PREDICTORS_WAITING.decrementAndGet();
+        WAIT_TIME.recordSince(startNanos);
+    }
+
+    static void predictStarted() {
+        PREDICTORS_BUSY.incrementAndGet();
+    }
+
+    static void predictFinished(long startNanos, boolean success) {
+        PREDICTORS_BUSY.decrementAndGet();
+        if (success)
+            PREDICT_TIME.recordSince(startNanos);
+    }
+
+    /**
+     * Add sinks to the default registry if requested with system properties.
+     */
+    private static void configureSinks() {
+        long seconds = 15;
+        String intervalProperty = System.getProperty("instanseg.metrics.interval", "15").strip();
+        try {
+            seconds = Math.max(1, Long.parseLong(intervalProperty));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid metrics interval: {}", intervalProperty);
+        }
+        var interval = Duration.ofSeconds(seconds);
+        String file = System.getProperty("instanseg.metrics.file", "").strip();
+        if (!file.isEmpty()) {
+            var sink = MetricsSink.prometheusFile(Path.of(file));
+            REGISTRY.addSink(sink, interval);
+            logger.info("Exporting InstanSeg metrics to {}", sink);
+        }
+        String port = System.getProperty("instanseg.metrics.port", "").strip();
+        if (!port.isEmpty()) {
+            // Only bind to another interface if explicitly requested, since the endpoint isn't authenticated
+            String host = System.getProperty("instanseg.metrics.host", "").strip();
+            try {
+                var sink = host.isEmpty() ?
+                        MetricsSink.prometheusHttp(Integer.parseInt(port)) :
+                        MetricsSink.prometheusHttp(host, Integer.parseInt(port));
+                REGISTRY.addSink(sink, interval);
+                logger.info("Exporting InstanSeg metrics to {}", sink);
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("Unable to start metrics endpoint on port {}", port, e);
+            }
+        }
+    }
+
+}
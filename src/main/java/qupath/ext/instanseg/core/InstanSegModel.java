@@ -4,55 +4,57 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.bioimageio.spec.BioimageIoSpec;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.servers.PixelCalibration;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InstanSegModel {
 
     private static final Logger logger = LoggerFactory.getLogger(InstanSegModel.class);
     private String version;
     private URL modelURL = null;
+    private String sha256 = null;
 
     /**
      * Constant to indicate that any number of channels are supported.
      */
     public static final int ANY_CHANNELS = -1;
 
+    /**
+     * Cache parsed specs, so that we don't need to parse the YAML again unless it has been modified.
+     */
+    private static final Map<Path, CachedSpec> specCache = new ConcurrentHashMap<>();
+
     private Path path = null;
     private BioimageIoSpec.BioimageIoModel model = null;
+    private Metadata metadata = null;
     private final String name;
 
-    private InstanSegModel(BioimageIoSpec.BioimageIoModel bioimageIoModel) {
+    private InstanSegModel(BioimageIoSpec.BioimageIoModel bioimageIoModel, Metadata metadata) {
         this.model = bioimageIoModel;
+        this.metadata = metadata;
         this.path = Paths.get(model.getBaseURI());
         this.version = model.getVersion();
         this.name = model.getName();
     }
 
-    private InstanSegModel(String name, String version, URL modelURL) {
+    private InstanSegModel(String name, String version, URL modelURL, String sha256) {
         this.name = name;
         this.version = version;
         this.modelURL = modelURL;
+        this.sha256 = sha256;
     }
 
     /**
@@ -62,7 +64,30 @@ public class InstanSegModel {
      * @throws IOException If the directory can't be found or isn't a valid model directory.
      */
     public static InstanSegModel fromPath(Path path) throws IOException {
-        return new InstanSegModel(BioimageIoSpec.parseModel(path));
+        var spec = getCachedSpec(path);
+        return new InstanSegModel(spec.model(), spec.metadata());
+    }
+
+    /**
+     * Parse a model spec, or return a cached version if the spec file hasn't been modified since it was last parsed.
+     * @param path the model path
+     * @return the parsed spec and its metadata
+     * @throws IOException if the spec can't be parsed
+     */
+    private static CachedSpec getCachedSpec(Path path) throws IOException {
+        var key = path.toAbsolutePath().normalize();
+        var specFile = Files.isDirectory(key) ? key.resolve("rdf.yaml") : key;
+        var lastModified = Files.exists(specFile) ? Files.getLastModifiedTime(specFile) : null;
+        var cached = specCache.get(key);
+        if (cached != null && lastModified != null && lastModified.equals(cached.lastModified())) {
+            logger.trace("Using cached spec for {}", key);
+            return cached;
+        }
+        var model = BioimageIoSpec.parseModel(path);
+        var spec = new CachedSpec(lastModified, model, Metadata.fromSpec(model));
+        if (lastModified != null)
+            specCache.put(key, spec);
+        return spec;
     }
 
     /**
@@ -72,7 +97,18 @@ public class InstanSegModel {
      * @return A handle on the created model
      */
     public static InstanSegModel fromURL(String name, String version, URL browserDownloadUrl) {
-        return new InstanSegModel(name, version, browserDownloadUrl);
+        return fromURL(name, version, browserDownloadUrl, null);
+    }
+
+    /**
+     * Create an InstanSeg model from a remote URL, with a known checksum.
+     * @param name The model name
+     * @param browserDownloadUrl The download URL from eg GitHub
+     * @param sha256 The expected SHA-256 checksum of the zipped model, or null if this is unknown
+     * @return A handle on the created model
+     */
+    public static InstanSegModel fromURL(String name, String version, URL browserDownloadUrl, String sha256) {
+        return new InstanSegModel(name, version, browserDownloadUrl, sha256);
     }
 
     /**
@@ -96,12 +132,20 @@ public class InstanSegModel {
         if (path != null && isValidModel(path) && model != null) {
             return;
         }
-        var zipFile = downloadZipIfNeeded(
-                this.modelURL,
-                downloadedModelDir,
-                getFolderName(name, version));
-        this.path = unzipIfNeeded(zipFile);
-        this.model = BioimageIoSpec.parseModel(path.toFile());
+        // The model may have been downloaded in a previous session
+        var outdir = downloadedModelDir.resolve(getFolderName(name, version));
+        if (!isUnpackedAlready(outdir)) {
+            var zipFile = downloadZipIfNeeded(
+                    this.modelURL,
+                    downloadedModelDir,
+                    getFolderName(name, version),
+                    sha256);
+            unzip(zipFile, outdir);
+        }
+        var spec = getCachedSpec(outdir);
+        this.path = outdir;
+        this.model = spec.model();
+        this.metadata = spec.metadata();
         this.version = model.getVersion();
     }
 
@@ -222,16 +266,78 @@ public class InstanSegModel {
      * Check if a path is (likely) a valid InstanSeg model.
      * @param path The path to a folder.
      * @return True if the folder contains an instanseg.pt file and an accompanying rdf.yaml.
-     * Does not currently validate the contents of either, but may in future check
-     * the yaml contents and the checksum of the pt file.
+     * For downloaded models, this also checks that the weights are the ones recorded when the model was extracted
+     * (without reading them), and that they haven't been found to be corrupt by {@link #checkModelFiles(Path)}.
+     * Local models are not otherwise validated.
      */
     public static boolean isValidModel(Path path) {
         if (Files.isDirectory(path)) {
-            return Files.exists(path.resolve("instanseg.pt")) && Files.exists(path.resolve("rdf.yaml"));
+            if (!Files.exists(path.resolve("instanseg.pt")) || !Files.exists(path.resolve("rdf.yaml")))
+                return false;
+            return !ModelDownloader.isComplete(path) || ModelStore.verify(path);
         }
         return false;
     }
 
+    /**
+     * Check if a path is a valid InstanSeg model, including checking that the weights of downloaded models match
+     * the checksums recorded when the model was extracted.
+     * <p>
+     * This can be slow, because the weights need to be read the first time a model is checked in each session
+     * (and again if they are modified) - so it should not be called from the UI thread.
+     * If the weights are found to be corrupt, {@link #isValidModel(Path)} will also return false for the model.
+     * @param path The path to a folder.
+     * @return True if the folder is a valid model and its weights are unchanged.
+     */
+    public static boolean checkModelFiles(Path path) {
+        return isValidModel(path) && (!ModelDownloader.isComplete(path) || ModelStore.verifyContents(path));
+    }
+
+    /**
+     * Remove any stored model files that are no longer used by a downloaded model, e.g. because the model has
+     * been deleted or replaced by a newer version.
+     * @param downloadedModelDir the directory containing downloaded models
+     */
+    public static void removeUnusedFiles(Path downloadedModelDir) {
+        var blobDir = downloadedModelDir.resolve(ModelStore.BLOB_DIRECTORY);
+        try {
+            int nRemoved = ModelStore.removeUnusedBlobs(blobDir);
+            if (nRemoved > 0)
+                logger.debug("Removed {} unused model files from {}", nRemoved, blobDir);
+        } catch (IOException e) {
+            logger.warn("Unable to remove unused model files from {}", blobDir, e);
+        }
+    }
+
+    /**
+     * Get the SHA-256 checksum of the model weights, if known.
+     * This is recorded for downloaded models, but not for local models.
+     * @return the checksum as a hex string, or empty if not available
+     */
+    public Optional<String> getWeightsChecksum() {
+        return getPath().map(p -> ModelStore.getChecksum(p, "instanseg.pt"));
+    }
+
+    /**
+     * Get a string that identifies the model weights, for use in cache keys.
+     * This is the checksum if known; otherwise it is derived from the path, last modified time and size
+     * of the weights file.
+     * @return the identity, or empty if the model is not available locally
+     */
+    Optional<String> getWeightsIdentity() {
+        var checksum = getWeightsChecksum();
+        if (checksum.isPresent())
+            return checksum;
+        return getPath().map(p -> p.resolve("instanseg.pt")).map(file -> {
+            try {
+                return file.toAbsolutePath() + "@" + Files.getLastModifiedTime(file).toMillis() + ":" + Files.size(file);
+            } catch (IOException e) {
+                logger.debug("Unable to read attributes of {}", file, e);
+                return null;
+            }
+        });
+    }
+
     /**
      * Get the model name
      * @return A string
@@ -240,12 +346,20 @@ public class InstanSegModel {
         return name;
     }
 
+    /**
+     * Get the model version
+     * @return A string, or null if the version is unknown
+     */
+    public String getVersion() {
+        return version;
+    }
+
     /**
      * Try to check the number of channels in the model.
      * @return The integer if the model is downloaded, otherwise empty
      */
     public Optional<Integer> getNumChannels() {
-        return getModel().flatMap(model -> Optional.of(extractChannelNum(model)));
+        return getMetadata().map(Metadata::numChannels);
     }
 
     private static int extractChannelNum(BioimageIoSpec.BioimageIoModel model) {
@@ -266,51 +380,22 @@ public class InstanSegModel {
         return Optional.ofNullable(model);
     }
 
-    private static Path downloadZipIfNeeded(URL url, Path downloadDirectory, String filename) throws IOException {
-        Files.createDirectories(downloadDirectory);
-        var zipFile = downloadDirectory.resolve(filename + ".zip");
-        if (!isDownloadedAlready(zipFile)) {
-            try (InputStream stream = url.openStream()) {
-                try (ReadableByteChannel readableByteChannel = Channels.newChannel(stream)) {
-                    try (FileOutputStream fos = new FileOutputStream(zipFile.toFile())) {
-                        fos.getChannel().transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
-                    }
-                }
-            }
-        }
-        return zipFile;
+    /**
+     * Retrieve the metadata derived from the model spec.
+     * @return The metadata, or empty if the model isn't downloaded yet.
+     */
+    private Optional<Metadata> getMetadata() {
+        return Optional.ofNullable(metadata);
     }
 
-    private static boolean isDownloadedAlready(Path zipFile) {
+    private static Path downloadZipIfNeeded(URL url, Path downloadDirectory, String filename, String sha256) throws IOException {
+        Files.createDirectories(downloadDirectory);
+        var zipFile = downloadDirectory.resolve(filename + ".zip");
+        // Downloads are only moved to the zip file location once complete (and verified, if we have a checksum)
         if (!Files.exists(zipFile)) {
-            return false;
-        }
-        try {
-            BioimageIoSpec.parseModel(zipFile.toFile());
-        } catch (IOException e) {
-            logger.warn("Invalid zip file", e);
-            return false;
-        }
-        return true;
-    }
-
-    private Path unzipIfNeeded(Path zipFile) throws IOException {
-        var zipSpec = BioimageIoSpec.parseModel(zipFile);
-        String version = zipSpec.getVersion();
-        var outdir = zipFile.resolveSibling(getFolderName(zipSpec.getName(), version));
-        if (!isUnpackedAlready(outdir)) {
-            try {
-                unzip(zipFile, outdir);
-                // Files.delete(zipFile);
-            } catch (IOException e) {
-                logger.error("Error unzipping model", e);
-                // clean up files just in case!
-                Files.deleteIfExists(outdir);
-            } finally {
-                Files.deleteIfExists(zipFile);
-            }
+            ModelDownloader.download(url, zipFile, sha256);
         }
-        return outdir;
+        return zipFile;
     }
 
     private String getFolderName(String name, String version) {
@@ -321,36 +406,18 @@ public class InstanSegModel {
     }
 
     private static boolean isUnpackedAlready(Path outdir) {
-        return Files.exists(outdir) && isValidModel(outdir);
+        return ModelDownloader.isComplete(outdir) && checkModelFiles(outdir);
     }
 
     private static void unzip(Path zipFile, Path destination) throws IOException {
-        if (!Files.exists(destination)) {
-            Files.createDirectories(destination);
-        }
-        ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile.toFile())));
-        ZipEntry entry = zipIn.getNextEntry();
-        while (entry != null) {
-            Path filePath = destination.resolve(entry.getName());
-            if (entry.isDirectory()) {
-                Files.createDirectory(filePath);
-            } else {
-                extractFile(zipIn, filePath);
-            }
-            zipIn.closeEntry();
-            entry = zipIn.getNextEntry();
-        }
-        zipIn.close();
-    }
-
-    private static void extractFile(ZipInputStream zipIn, Path filePath) throws IOException {
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePath.toFile()));
-        byte[] bytesIn = new byte[4096];
-        int read;
-        while ((read = zipIn.read(bytesIn)) != -1) {
-            bos.write(bytesIn, 0, read);
+        try {
+            ModelDownloader.extract(zipFile, destination, ModelDownloader.sha256(zipFile));
+        } catch (IOException e) {
+            logger.error("Error unzipping model", e);
+            throw e;
+        } finally {
+            Files.deleteIfExists(zipFile);
         }
-        bos.close();
     }
 
     private String getREADMEString(Path path) {
@@ -369,19 +436,21 @@ public class InstanSegModel {
     }
 
     private Optional<Map<String, Double>> getPixelSize() {
-        return getModel().flatMap(model -> {
-            var config = model.getConfig().getOrDefault("qupath", null);
-            if (config instanceof Map configMap) {
-                var axes = (List) configMap.get("axes");
-                String x = String.valueOf(((Map) (axes.get(0))).get("step"));
-                String y = String.valueOf(((Map) (axes.get(1))).get("step"));
-                return Optional.of(Map.of(
-                        "x", Double.valueOf(x),
-                        "y", Double.valueOf(y)
-                ));
-            }
-            return Optional.of(Map.of("x", 1.0, "y", 1.0));
-        });
+        return getMetadata().map(Metadata::pixelSize);
+    }
+
+    private static Map<String, Double> extractPixelSize(BioimageIoSpec.BioimageIoModel model) {
+        var config = model.getConfig().getOrDefault("qupath", null);
+        if (config instanceof Map configMap) {
+            var axes = (List) configMap.get("axes");
+            String x = String.valueOf(((Map) (axes.get(0))).get("step"));
+            String y = String.valueOf(((Map) (axes.get(1))).get("step"));
+            return Map.of(
+                    "x", Double.valueOf(x),
+                    "y", Double.valueOf(y)
+            );
+        }
+        return Map.of("x", 1.0, "y", 1.0);
     }
 
     /**
@@ -389,15 +458,102 @@ public class InstanSegModel {
      * @return a positive integer
      */
     public Optional<Integer> getOutputChannels() {
-        return getModel().map(model -> {
-            var output = model.getOutputs().getFirst();
-            String axes = output.getAxes().toLowerCase();
-            int ind = axes.indexOf("c");
-            var shape = output.getShape().getShape();
-            if (shape != null && shape.length > ind)
-                return shape[ind];
-            return (int)Math.round(output.getShape().getOffset()[ind] * 2);
-        });
+        return getMetadata().map(Metadata::outputChannels);
+    }
+
+    private static int extractOutputChannels(BioimageIoSpec.BioimageIoModel model) {
+        var output = model.getOutputs().getFirst();
+        String axes = output.getAxes().toLowerCase();
+        int ind = axes.indexOf("c");
+        var shape = output.getShape().getShape();
+        if (shape != null && shape.length > ind)
+            return shape[ind];
+        return (int)Math.round(output.getShape().getOffset()[ind] * 2);
+    }
+
+    /**
+     * Get the constraints on the width and height of the input, as defined in the model spec.
+     * @return the constraints, or empty if the model isn't downloaded yet
+     */
+    Optional<ShapeConstraints> getInputShapeConstraints() {
+        return getMetadata().map(Metadata::inputShape);
+    }
+
+    private static ShapeConstraints extractInputShape(BioimageIoSpec.BioimageIoModel model) {
+        var input = model.getInputs().getFirst();
+        String axes = input.getAxes().toLowerCase();
+        int indX = axes.indexOf("x");
+        int indY = axes.indexOf("y");
+        var shape = input.getShape();
+        int[] min = shape.getShapeMin();
+        int[] step = shape.getShapeStep();
+        if (min == null || step == null || min.length != axes.length() || step.length != axes.length()) {
+            // Fixed shape (or not specified)
+            int[] fixed = shape.getShape();
+            if (fixed != null && fixed.length == axes.length() && indX >= 0 && indY >= 0)
+                return new ShapeConstraints(fixed[indX], fixed[indY], 0, 0);
+            return ShapeConstraints.ANY;
+        }
+        if (indX < 0 || indY < 0)
+            return ShapeConstraints.ANY;
+        return new ShapeConstraints(min[indX], min[indY], step[indX], step[indY]);
     }
 
+    /**
+     * Constraints on the spatial size of the model input.
+     * Valid sizes are {@code min + n * step} for any non-negative integer {@code n};
+     * if the step is 0, only the minimum size is valid.
+     * @param minWidth the minimum width
+     * @param minHeight the minimum height
+     * @param stepWidth the step size for the width
+     * @param stepHeight the step size for the height
+     */
+    record ShapeConstraints(int minWidth, int minHeight, int stepWidth, int stepHeight) {
+
+        static final ShapeConstraints ANY = new ShapeConstraints(1, 1, 1, 1);
+
+        /**
+         * Get the smallest valid width that is at least as large as the requested width.
+         */
+        int roundUpWidth(int width) {
+            return roundUp(width, minWidth, stepWidth);
+        }
+
+        /**
+         * Get the smallest valid height that is at least as large as the requested height.
+         */
+        int roundUpHeight(int height) {
+            return roundUp(height, minHeight, stepHeight);
+        }
+
+        private static int roundUp(int size, int min, int step) {
+            if (size <= min || step <= 0)
+                return Math.max(size, min);
+            return min + (int)Math.ceil((size - min) / (double)step) * step;
+        }
+
+    }
+
+    /**
+     * Immutable snapshot of the values derived from a model spec, so these only need to be computed once.
+     * @param numChannels the number of input channels, or {@link #ANY_CHANNELS}
+     * @param outputChannels the number of output channels
+     * @param pixelSize the pixel size, with keys "x" and "y"
+     * @param inputShape the constraints on the input width and height
+     */
+    private record Metadata(int numChannels, int outputChannels, Map<String, Double> pixelSize,
+                            ShapeConstraints inputShape) {
+
+        private static Metadata fromSpec(BioimageIoSpec.BioimageIoModel model) {
+            return new Metadata(
+                    extractChannelNum(model),
+                    extractOutputChannels(model),
+                    extractPixelSize(model),
+                    extractInputShape(model));
+        }
+
+    }
+
+    private record CachedSpec(FileTime lastModified, BioimageIoSpec.BioimageIoModel model, Metadata metadata) {}
+
 }
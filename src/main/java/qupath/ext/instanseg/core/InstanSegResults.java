@@ -1,23 +1,47 @@
 package qupath.ext.instanseg.core;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Record for storing a summary of an InstanSeg run.
  * @param nPixelsProcessed total number of pixels passed to the model for inference (including padding, excluding channels)
  * @param nTilesProcessed total number of tiles that were processed, including any that failed
  * @param nTilesFailed number of tiles that threw an exception during processing
+ * @param nTilesSkipped number of tiles that were skipped without inference because they appeared to be empty
  * @param nObjectsDetected number of objects detected in the image
  * @param processingTimeMillis total time taken to process the image in milliseconds
  * @param wasInterrupted whether the processing was interrupted; if so, failed tiles are not necessary problematic
+ * @param nTilesPerDevice number of tiles successfully inferred by each device
+ * @param stageTimesMillis time spent in each stage of processing (e.g. "read", "predict", "merge") in milliseconds,
+ *                         summed across all threads - so the total may exceed the processing time
+ * @param nativeMemory summary of the native memory used during the run
+ * @param latency summary of the time taken to infer tiles, distinguishing the first tile for each predictor
  */
 public record InstanSegResults(
         long nPixelsProcessed,
         int nTilesProcessed,
         int nTilesFailed,
+        int nTilesSkipped,
         int nObjectsDetected,
         long processingTimeMillis,
-        boolean wasInterrupted) {
+        boolean wasInterrupted,
+        Map<String, Integer> nTilesPerDevice,
+        Map<String, Long> stageTimesMillis,
+        NativeMemoryStats nativeMemory,
+        LatencyStats latency) {
+
+    public InstanSegResults {
+        nTilesPerDevice = nTilesPerDevice == null ? Map.of() : Map.copyOf(nTilesPerDevice);
+        // Retain the order, which should match the order of processing
+        stageTimesMillis = stageTimesMillis == null ? Map.of() : Collections.unmodifiableMap(new LinkedHashMap<>(stageTimesMillis));
+        nativeMemory = nativeMemory == null ? NativeMemoryStats.UNKNOWN : nativeMemory;
+        latency = latency == null ? LatencyStats.UNKNOWN : latency;
+    }
 
-    private static final InstanSegResults EMPTY = new InstanSegResults(0, 0, 0, 0, 0, false);
+    private static final InstanSegResults EMPTY = new InstanSegResults(0, 0, 0, 0, 0, 0, false, Map.of(), Map.of(),
+            NativeMemoryStats.UNKNOWN, LatencyStats.UNKNOWN);
 
     /**
      * Get an empty instance of InstanSegResults.
@@ -27,4 +51,45 @@ public record InstanSegResults(
         return EMPTY;
     }
 
+    /**
+     * Summary of the native memory used during an InstanSeg run.
+     * Byte counts are -1 if unknown.
+     * <p>
+     * Retained bytes are measured across the whole session, so may include tensors for other images if the
+     * session is used concurrently.
+     * @param peakTileBytes the largest native memory allocated for tensors for a single tile
+     * @param retainedBytes native memory still used by tensors in the session after the run
+     * @param residentBytesStart resident set size of the process at the start of the run
+     * @param residentBytesEnd resident set size of the process at the end of the run
+     * @param nPredictorsRecycled number of times a predictor was recycled because native memory exceeded the ceiling
+     */
+    public record NativeMemoryStats(
+            long peakTileBytes,
+            long retainedBytes,
+            long residentBytesStart,
+            long residentBytesEnd,
+            int nPredictorsRecycled) {
+
+        private static final NativeMemoryStats UNKNOWN = new NativeMemoryStats(-1, -1, -1, -1, 0);
+
+    }
+
+    /**
+     * Summary of the time taken to infer tiles during an InstanSeg run.
+     * <p>
+     * The first tile inferred by each predictor is often much slower than later tiles, because the model is
+     * optimized for the shapes it sees - unless the predictors were warmed up first.
+     * @param warmUpMillis time spent warming up predictors before tiling started, in milliseconds
+     * @param firstTileMillis mean time to infer the first tile with each predictor, in milliseconds (NaN if unknown)
+     * @param steadyStateTileMillis mean time to infer all later tiles, in milliseconds (NaN if unknown)
+     */
+    public record LatencyStats(
+            long warmUpMillis,
+            double firstTileMillis,
+            double steadyStateTileMillis) {
+
+        private static final LatencyStats UNKNOWN = new LatencyStats(0, Double.NaN, Double.NaN);
+
+    }
+
 }
@@ -0,0 +1,269 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A loaded InstanSeg model, with one or more predictors ready for inference.
+ * <p>
+ * Loading a model can take several seconds, so a session can be used to run InstanSeg for many images
+ * (possibly concurrently) without reloading the model each time.
+ * Sessions are created with {@link InstanSeg#openSession()}, and must be closed when no longer needed to
+ * release native resources.
+ * <p>
+ * A session can be used with any {@link InstanSeg} instance that uses the same backend, model, devices and
+ * output channels.
+ */
+public class InstanSegSession implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanSegSession.class);
+
+    private final InstanSeg instanSeg;
+    private final InferenceBackend backend;
+    private final Path modelPath;
+    private final List<Device> devices;
+    private final boolean[] outputChannels;
+    private final List<InferenceBackend.LoadedModel> models;
+    private final BlockingQueue<TilePredictor> predictors;
+    private final Set<String> warmShapes = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean isClosed = false;
+
+    private InstanSegSession(InstanSeg instanSeg, InferenceBackend backend, Path modelPath, List<Device> devices,
+                             boolean[] outputChannels, List<InferenceBackend.LoadedModel> models,
+                             BlockingQueue<TilePredictor> predictors) {
+        this.instanSeg = instanSeg;
+        this.backend = backend;
+        this.modelPath = modelPath;
+        this.devices = devices;
+        this.outputChannels = outputChannels;
+        this.models = models;
+        this.predictors = predictors;
+    }
+
+    /**
+     * Load a model and create predictors.
+     * <p>
+     * If several devices are specified, a copy of the model is loaded on each device and all predictors are added
+     * to a single shared queue. Because each tile takes the next available predictor, faster devices
+     * automatically process more tiles.
+     * @param instanSeg the InstanSeg instance that requested the session
+     * @param backend the backend used to load the model
+     * @param modelPath path to the TorchScript file; may be null if the backend doesn't require it
+     * @param devices the devices to use
+     * @param outputChannels boolean array of the output channels to retain, or null to retain all
+     * @param nPredictors the number of predictors to create for each device
+     * @return the session
+     * @throws IOException if the model can't be loaded
+     */
+    static InstanSegSession create(InstanSeg instanSeg, InferenceBackend backend, Path modelPath, List<Device> devices,
+                                   boolean[] outputChannels, int nPredictors) throws IOException {
+        if (devices.isEmpty())
+            throw new IllegalArgumentException("At least one device is required");
+
+        List<InferenceBackend.LoadedModel> models = new ArrayList<>();
+        BlockingQueue<TilePredictor> predictors = new ArrayBlockingQueue<>(nPredictors * devices.size());
+        try {
+            for (var device : devices) {
+                var model = backend.load(modelPath, device, outputChannels, nPredictors);
+                models.add(model);
+                predictors.addAll(model.getPredictors());
+            }
+        } catch (IOException | RuntimeException e) {
+            models.forEach(InferenceBackend.LoadedModel::close);
+            throw e;
+        }
+        logger.debug("Created {} predictors using {}", predictors.size(), backend);
+        var session = new InstanSegSession(instanSeg, backend, modelPath, List.copyOf(devices),
+                outputChannels == null ? null : outputChannels.clone(),
+                List.copyOf(models), predictors);
+        InstanSegMetrics.sessionOpened(session);
+        return session;
+    }
+
+    /**
+     * Run inference for a collection of PathObjects associated with the specified image, using the InstanSeg
+     * instance that created this session.
+     * @param imageData the image
+     * @param pathObjects the parent objects
+     * @return a summary of the results
+     * @see InstanSeg#detectObjects(InstanSegSession, ImageData, Collection)
+     */
+    public InstanSegResults detectObjects(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
+        return instanSeg.detectObjects(this, imageData, pathObjects);
+    }
+
+    /**
+     * Check whether this session can be used for the specified model configuration.
+     * @param backend the backend used to load the model
+     * @param modelPath path to the TorchScript file
+     * @param devices the devices
+     * @param outputChannels boolean array of the output channels to retain, or null to retain all
+     * @return true if the session uses the same backend, model, devices and output channels
+     */
+    boolean isCompatible(InferenceBackend backend, Path modelPath, List<Device> devices, boolean[] outputChannels) {
+        return !isClosed &&
+                this.backend == backend &&
+                Objects.equals(this.modelPath, modelPath) &&
+                Objects.equals(this.devices, devices) &&
+                Arrays.equals(this.outputChannels, outputChannels);
+    }
+
+    /**
+     * Get the queue of predictors.
+     * Predictors should be returned to the queue after use.
+     * @return the predictors
+     */
+    BlockingQueue<TilePredictor> getPredictors() {
+        if (isClosed)
+            throw new IllegalStateException("Session has been closed");
+        return predictors;
+    }
+
+    /**
+     * Warm up all predictors by running forward passes with synthetic input of the specified shape.
+     * <p>
+     * The first few tiles processed by a model are often much slower than later tiles, because the model is
+     * optimized for the shapes it sees. Warming up moves this cost out of tile processing, so that it can happen
+     * before tiling starts (or in the background, before a run is requested).
+     * <p>
+     * Each shape is warmed up only once per session, unless warming up failed or was interrupted - in which case
+     * it will be tried again next time.
+     * The number of forward passes per predictor can be set with the system property {@code instanseg.warmUpPasses}
+     * (default 2).
+     * @param width the tile width
+     * @param height the tile height
+     * @param nChannels the number of input channels
+     * @return the time spent warming up, in milliseconds (0 if the shape had already been warmed up)
+     * @throws InterruptedException if warming up is interrupted
+     */
+    public synchronized long warmUp(int width, int height, int nChannels) throws InterruptedException {
+        if (isClosed)
+            throw new IllegalStateException("Session has been closed");
+        String shape = width + "x" + height + "x" + nChannels;
+        if (warmShapes.contains(shape))
+            return 0;
+        int nPasses = Math.max(1, Integer.parseInt(System.getProperty("instanseg.warmUpPasses", "2").strip()));
+        long startTime = System.nanoTime();
+        // Hold each predictor until all have been warmed up, so that none is warmed up twice
+        // (any run using the session concurrently will need to wait)
+        int nPredictors = getPredictorCount();
+        List<TilePredictor> warmed = new ArrayList<>();
+        boolean failed = false;
+        try (var mat = createWarmUpInput(width, height, nChannels)) {
+            for (int i = 0; i < nPredictors; i++) {
+                var predictor = predictors.take();
+                try {
+                    for (int p = 0; p < nPasses; p++) {
+                        long startPass = System.nanoTime();
+                        try (var output = predictor.predict(mat)) {
+                            logger.trace("Warm-up pass {} on {}: {} ms", p, predictor.getDeviceName(),
+                                    (System.nanoTime() - startPass) / 1_000_000);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("Warm-up failed on {}: {}", predictor.getDeviceName(), e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    failed = true;
+                } finally {
+                    warmed.add(predictor);
+                }
+            }
+        } finally {
+            predictors.addAll(warmed);
+        }
+        // Only record the shape once every predictor has been warmed up successfully
+        if (!failed)
+            warmShapes.add(shape);
+        long millis = (System.nanoTime() - startTime) / 1_000_000;
+        InstanSegMetrics.WARM_UP_TIME.record(millis * 1_000_000);
+        logger.info("Warmed up {} predictors for {}x{} tiles in {} ms", warmed.size(), width, height, millis);
+        return millis;
+    }
+
+    private static Mat createWarmUpInput(int width, int height, int nChannels) {
+        // Use noise with similar values to normalized images, rather than zeros that might be handled differently
+        var mat = new Mat(height, width, opencv_core.CV_32FC(nChannels));
+        var random = new Random(42);
+        try (FloatIndexer idx = mat.createIndexer()) {
+            for (long i = 0; i < idx.size(0); i++) {
+                for (long j = 0; j < idx.size(1); j++) {
+                    for (long c = 0; c < idx.size(2); c++) {
+                        idx.put(i, j, c, random.nextFloat());
+                    }
+                }
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Get the total number of predictors in this session, including any that are currently in use.
+     * @return the number of predictors
+     */
+    int getPredictorCount() {
+        return predictors.remainingCapacity() + predictors.size();
+    }
+
+    /**
+     * Get the native memory currently used by tensors for all models in this session, if known.
+     * @return the number of bytes, or -1 if unknown
+     */
+    long getNativeMemoryBytes() {
+        long total = -1;
+        for (var model : models) {
+            long bytes = model.getNativeMemoryBytes();
+            if (bytes >= 0)
+                total = Math.max(total, 0) + bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Get the devices used by this session.
+     * @return an unmodifiable list of devices
+     */
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Query if the session has been closed.
+     * @return true if the session is closed, false otherwise
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+        InstanSegMetrics.sessionClosed(this);
+        for (var model : models) {
+            model.close();
+        }
+    }
+
+}
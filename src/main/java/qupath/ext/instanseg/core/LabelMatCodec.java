@@ -0,0 +1,129 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Helper class to serialize the label images output by InstanSeg.
+ * <p>
+ * Labels are stored as deflated 32-bit integers. Because label images consist mostly of long runs of identical
+ * values, they usually compress to a small fraction of their original size.
+ */
+class LabelMatCodec {
+
+    private LabelMatCodec() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Write a label image.
+     * @param mat a Mat with type CV_32S and one or more channels
+     * @param output the output to write to
+     * @throws IOException if the data can't be written
+     * @throws IllegalArgumentException if the Mat doesn't have a signed 32-bit integer type
+     */
+    static void write(Mat mat, DataOutput output) throws IOException {
+        byte[] compressed = encode(mat);
+        output.writeInt(mat.rows());
+        output.writeInt(mat.cols());
+        output.writeInt(mat.channels());
+        output.writeInt(compressed.length);
+        output.write(compressed);
+    }
+
+    /**
+     * Read a label image written by {@link #write(Mat, DataOutput)}.
+     * @param input the input to read from
+     * @return a new Mat with type CV_32S
+     * @throws IOException if the data can't be read, or is corrupt
+     */
+    static Mat read(DataInput input) throws IOException {
+        int rows = input.readInt();
+        int cols = input.readInt();
+        int channels = input.readInt();
+        int length = input.readInt();
+        if (rows < 0 || cols < 0 || channels <= 0 || length < 0)
+            throw new IOException("Invalid label image header");
+        byte[] compressed = new byte[length];
+        input.readFully(compressed);
+        return decode(compressed, rows, cols, channels);
+    }
+
+    /**
+     * Compress the pixels of a label image.
+     * @param mat a Mat with type CV_32S and one or more channels
+     * @return the compressed pixels
+     */
+    static byte[] encode(Mat mat) {
+        if (mat.depth() != opencv_core.CV_32S)
+            throw new IllegalArgumentException("Label image must have type CV_32S, but depth is " + mat.depth());
+        var continuous = mat.isContinuous() ? mat : mat.clone();
+        IntBuffer ints = continuous.createBuffer();
+        var bytes = ByteBuffer.allocate(ints.remaining() * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asIntBuffer().put(ints);
+        if (continuous != mat)
+            continuous.close();
+
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes.array());
+            deflater.finish();
+            var out = new ByteArrayOutputStream(Math.max(64, bytes.capacity() / 16));
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress the pixels of a label image.
+     * @param compressed the compressed pixels
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param channels the number of channels
+     * @return a new Mat with type CV_32S
+     * @throws IOException if the data is corrupt
+     */
+    static Mat decode(byte[] compressed, int rows, int cols, int channels) throws IOException {
+        var bytes = ByteBuffer.allocate(rows * cols * channels * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] array = bytes.array();
+            int n = 0;
+            while (n < array.length && !inflater.finished()) {
+                int count = inflater.inflate(array, n, array.length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += count;
+            }
+            if (n != array.length || !inflater.finished())
+                throw new IOException("Unexpected label image size");
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid label image data", e);
+        } finally {
+            inflater.end();
+        }
+        var mat = new Mat(rows, cols, opencv_core.CV_32SC(channels));
+        IntBuffer ints = mat.createBuffer();
+        ints.put(bytes.asIntBuffer());
+        return mat;
+    }
+
+}
@@ -1,17 +1,22 @@
 package qupath.ext.instanseg.core;
 
 import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
 import ai.djl.translate.Translator;
 import ai.djl.translate.TranslatorContext;
 import org.bytedeco.opencv.opencv_core.Mat;
 import qupath.ext.djl.DjlTools;
 
-import java.util.Arrays;
+import java.util.UUID;
 
 
 class MatTranslator implements Translator<Mat, Mat> {
 
+    private static final String TILE_MANAGER = "instanseg.tileManager";
+    private static final String TILE_SCOPE = "instanseg.tileScope";
+
     private final String inputLayoutNd;
     private final String outputLayoutNd;
     private final int[] outputChannels;
@@ -44,15 +49,28 @@ class MatTranslator implements Translator<Mat, Mat> {
      * Convert Mat to NDArray and add to an NDList.
      * Note that not all OpenCV types are supported.
      * Specifically, 16-bit types should be avoided.
+     * <p>
+     * All arrays for the tile are created in a sub-manager, which is closed as soon as the output has been
+     * converted - or when the predictor context is closed, if inference fails.
+     * If the current thread has a {@link NativeMemoryTracker}, the arrays are recorded there until they are released.
      */
     @Override
     public NDList processInput(TranslatorContext ctx, Mat input) {
-        var manager = ctx.getNDManager();
+        var manager = ctx.getNDManager().newSubManager();
+        ctx.setAttachment(TILE_MANAGER, manager);
+        var scope = createTileScope(manager);
+        if (scope != null)
+            ctx.setAttachment(TILE_SCOPE, scope);
+
         var ndarray = DjlTools.matToNDArray(manager, input, inputLayoutNd);
+        addBytes(scope, ndarray);
         var out = new NDList(ndarray);
         if (outputChannels != null) {
             var array = manager.create(outputChannels);
+            addBytes(scope, array);
             var arrayCPU = array.toDevice(Device.cpu(), false);
+            if (arrayCPU != array)
+                addBytes(scope, arrayCPU);
             out.add(arrayCPU);
         }
         return out;
@@ -61,7 +79,28 @@ class MatTranslator implements Translator<Mat, Mat> {
     @Override
     public Mat processOutput(TranslatorContext ctx, NDList list) {
         var array = list.getFirst();
-        return DjlTools.ndArrayToMat(array, outputLayoutNd);
+        var manager = (NDManager)ctx.getAttachment(TILE_MANAGER);
+        if (manager == null)
+            return DjlTools.ndArrayToMat(array, outputLayoutNd);
+        try (manager) {
+            addBytes((NativeMemoryTracker.TileScope)ctx.getAttachment(TILE_SCOPE), array);
+            return DjlTools.ndArrayToMat(array, outputLayoutNd);
+        }
+    }
+
+    private static NativeMemoryTracker.TileScope createTileScope(NDManager manager) {
+        var tracker = NativeMemoryTracker.current();
+        if (tracker == null)
+            return null;
+        var scope = tracker.newTileScope();
+        // Closing the manager closes the scope, so the bytes are released however the tile ends
+        manager.attachInternal(UUID.randomUUID().toString(), scope);
+        return scope;
+    }
+
+    private static void addBytes(NativeMemoryTracker.TileScope scope, NDArray array) {
+        if (scope != null)
+            scope.add(DjlInferenceBackend.getBytes(array));
     }
 
 }
@@ -0,0 +1,235 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.objects.PathObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.UUID;
+
+/**
+ * Columnar storage for measurements of InstanSeg detections.
+ * <p>
+ * Each measurement is stored in a single primitive {@code double[]} column, indexed by object.
+ * This avoids the overhead of storing hundreds of named measurements separately for every object,
+ * which can dominate memory use for multiplexed images with millions of detections.
+ * It also makes it possible to scan entire columns, e.g. for export or classification.
+ * <p>
+ * Objects are identified by their ID, so the table remains valid if objects are copied or the hierarchy
+ * is reloaded - but not if new IDs are assigned.
+ * Measurements can be written back to the objects with {@link #restoreMeasurements(Collection)} whenever
+ * they are required by code that only knows about QuPath's measurement lists.
+ * <p>
+ * Rows are not removed automatically when objects are deleted or replaced, so objects that are no longer needed
+ * should be removed with {@link #removeAll(Collection)} (or the table {@linkplain #clear() cleared}) to avoid
+ * the table growing indefinitely.
+ * <p>
+ * This class is thread-safe.
+ */
+public class MeasurementTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    private final Map<UUID, Integer> rowIndex = new HashMap<>();
+
+    private UUID[] rowIds = new UUID[INITIAL_CAPACITY];
+    private double[][] columns = new double[0][];
+    private int capacity = INITIAL_CAPACITY;
+    private int nRows = 0;
+
+    /**
+     * Create a new, empty measurement table.
+     */
+    public MeasurementTable() {}
+
+    /**
+     * Move all measurements of an object into this table.
+     * The measurement list of the object is cleared, so that it only needs to retain its row in the table.
+     * If the object is already in the table, its existing row is replaced - so any measurements that are not in the
+     * object's measurement list are removed.
+     * @param pathObject the object whose measurements should be moved
+     * @return the row index of the object
+     */
+    public synchronized int addRow(PathObject pathObject) {
+        var id = pathObject.getID();
+        Integer row = rowIndex.get(id);
+        if (row == null) {
+            ensureCapacity(nRows + 1);
+            row = nRows++;
+            rowIds[row] = id;
+            rowIndex.put(id, row);
+        }
+        for (var column : columns) {
+            column[row] = Double.NaN;
+        }
+        try (var ml = pathObject.getMeasurementList()) {
+            for (var name : ml.getNames()) {
+                getOrCreateColumn(name)[row] = ml.get(name);
+            }
+            ml.clear();
+        }
+        return row;
+    }
+
+    /**
+     * Query if the table contains measurements for a specified object.
+     * @param pathObject the object
+     * @return true if the object has a row in this table, false otherwise
+     */
+    public synchronized boolean contains(PathObject pathObject) {
+        return rowIndex.containsKey(pathObject.getID());
+    }
+
+    /**
+     * Remove the measurements of an object from the table.
+     * <p>
+     * To keep the table compact, the last row is moved to replace the removed row - so the row index of another
+     * object may change.
+     * @param pathObject the object
+     * @return true if the object was in the table, false otherwise
+     */
+    public synchronized boolean remove(PathObject pathObject) {
+        Integer row = rowIndex.remove(pathObject.getID());
+        if (row == null)
+            return false;
+        int last = --nRows;
+        if (row != last) {
+            for (var column : columns) {
+                column[row] = column[last];
+            }
+            rowIds[row] = rowIds[last];
+            rowIndex.put(rowIds[row], row);
+        }
+        rowIds[last] = null;
+        return true;
+    }
+
+    /**
+     * Remove the measurements of several objects from the table.
+     * @param pathObjects the objects
+     * @return the number of objects that were removed
+     * @see #remove(PathObject)
+     */
+    public synchronized int removeAll(Collection<? extends PathObject> pathObjects) {
+        int n = 0;
+        for (var pathObject : pathObjects) {
+            if (remove(pathObject))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Remove all rows from the table.
+     * The column names are retained.
+     */
+    public synchronized void clear() {
+        rowIndex.clear();
+        Arrays.fill(rowIds, 0, nRows, null);
+        nRows = 0;
+    }
+
+    /**
+     * Get the row index for an object.
+     * Note that row indices can change when other objects are removed.
+     * @param pathObject the object
+     * @return the row index, or empty if the object is not in the table
+     */
+    public synchronized OptionalInt getRow(PathObject pathObject) {
+        Integer row = rowIndex.get(pathObject.getID());
+        return row == null ? OptionalInt.empty() : OptionalInt.of(row);
+    }
+
+    /**
+     * Get a single measurement value for an object.
+     * @param pathObject the object
+     * @param name the measurement name
+     * @return the measurement value, or {@code Double.NaN} if either the object or measurement is not found
+     */
+    public synchronized double getValue(PathObject pathObject, String name) {
+        Integer row = rowIndex.get(pathObject.getID());
+        Integer col = columnIndex.get(name);
+        if (row == null || col == null)
+            return Double.NaN;
+        return columns[col][row];
+    }
+
+    /**
+     * Get a copy of all the values for a single measurement, ordered by row index.
+     * @param name the measurement name
+     * @return the column values, or an empty array if the measurement is not found
+     */
+    public synchronized double[] getColumn(String name) {
+        Integer col = columnIndex.get(name);
+        if (col == null)
+            return new double[0];
+        return Arrays.copyOf(columns[col], nRows);
+    }
+
+    /**
+     * Get the names of all measurements in the table, in the order they were first added.
+     * @return an unmodifiable list of names
+     */
+    public synchronized List<String> getColumnNames() {
+        return List.copyOf(names);
+    }
+
+    /**
+     * Get the number of objects in the table.
+     * @return the number of rows
+     */
+    public synchronized int size() {
+        return nRows;
+    }
+
+    /**
+     * Write the measurements stored in this table back to the measurement lists of the specified objects.
+     * Objects that are not in the table are ignored; the table itself is not modified.
+     * @param pathObjects the objects to update
+     */
+    public synchronized void restoreMeasurements(Collection<? extends PathObject> pathObjects) {
+        for (var pathObject : pathObjects) {
+            Integer row = rowIndex.get(pathObject.getID());
+            if (row == null)
+                continue;
+            try (var ml = pathObject.getMeasurementList()) {
+                for (int c = 0; c < names.size(); c++) {
+                    double val = columns[c][row];
+                    if (!Double.isNaN(val))
+                        ml.put(names.get(c), val);
+                }
+            }
+        }
+    }
+
+    private double[] getOrCreateColumn(String name) {
+        Integer col = columnIndex.get(name);
+        if (col != null)
+            return columns[col];
+        var column = new double[capacity];
+        Arrays.fill(column, Double.NaN);
+        columns = Arrays.copyOf(columns, columns.length + 1);
+        columns[columns.length - 1] = column;
+        columnIndex.put(name, columns.length - 1);
+        names.add(name);
+        return column;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= capacity)
+            return;
+        int newCapacity = Math.max(minCapacity, capacity * 2);
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Arrays.copyOf(columns[c], newCapacity);
+        }
+        rowIds = Arrays.copyOf(rowIds, newCapacity);
+        capacity = newCapacity;
+    }
+
+}
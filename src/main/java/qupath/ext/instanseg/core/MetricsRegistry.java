@@ -0,0 +1,340 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A simple registry of counters, gauges and timers, which can be exported periodically to one or more
+ * {@link MetricsSink}s.
+ * <p>
+ * InstanSeg records metrics in the {@linkplain #getDefault() default registry}, so that throughput and saturation
+ * can be tracked for long-running (e.g. headless batch) deployments.
+ * Sinks can be added programmatically, or by setting the system properties {@code instanseg.metrics.file}
+ * (path to a Prometheus text file) and/or {@code instanseg.metrics.port} (port for a Prometheus HTTP endpoint).
+ * The HTTP endpoint is bound to the loopback address, unless another host is given with
+ * {@code instanseg.metrics.host}.
+ * The export interval can be set in seconds with {@code instanseg.metrics.interval} (default 15).
+ */
+public final class MetricsRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+    private final Map<MetricsSink, ScheduledFuture<?>> sinks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new, empty registry.
+     */
+    public MetricsRegistry() {}
+
+    /**
+     * Get the default registry, which is used by InstanSeg.
+     * @return the default registry
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get or create a counter.
+     * @param name the metric name, e.g. {@code instanseg_tiles_total}
+     * @param help a short description
+     * @return the counter
+     * @throws IllegalArgumentException if a different type of metric has already been registered with the same name
+     */
+    public Counter counter(String name, String help) {
+        return getOrCreate(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    /**
+     * Get or create a gauge, which reports the current value of a supplier whenever metrics are exported.
+     * If a gauge with the same name already exists, it is returned unchanged.
+     * @param name the metric name
+     * @param help a short description
+     * @param supplier supplier of the current value
+     * @return the gauge
+     * @throws IllegalArgumentException if a different type of metric has already been registered with the same name
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier supplier) {
+        return getOrCreate(name, Gauge.class, () -> new Gauge(name, help, supplier));
+    }
+
+    /**
+     * Get or create a timer.
+     * @param name the metric name, e.g. {@code instanseg_predict_seconds}
+     * @param help a short description
+     * @return the timer
+     * @throws IllegalArgumentException if a different type of metric has already been registered with the same name
+     */
+    public Timer timer(String name, String help) {
+        return getOrCreate(name, Timer.class, () -> new Timer(name, help));
+    }
+
+    private <T extends Metric> T getOrCreate(String name, Class<T> cls, Supplier<T> creator) {
+        var metric = metrics.computeIfAbsent(name, n -> creator.get());
+        if (!cls.isInstance(metric))
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + metric.getClass().getSimpleName());
+        return cls.cast(metric);
+    }
+
+    /**
+     * Get all metrics, sorted by name.
+     * @return a list of metrics
+     */
+    public List<Metric> getMetrics() {
+        var list = new ArrayList<>(metrics.values());
+        list.sort((m1, m2) -> m1.name().compareTo(m2.name()));
+        return list;
+    }
+
+    /**
+     * Add a sink, which will receive all metrics at a fixed interval until it is removed.
+     * @param sink the sink
+     * @param interval the interval between exports
+     */
+    public synchronized void addSink(MetricsSink sink, Duration interval) {
+        Objects.requireNonNull(sink, "Sink must not be null");
+        if (sinks.containsKey(sink))
+            return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "instanseg-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long millis = Math.max(1, interval.toMillis());
+        sinks.put(sink, scheduler.scheduleAtFixedRate(() -> export(sink), 0, millis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Remove a sink, exporting the current metrics one last time before closing it.
+     * @param sink the sink to remove
+     */
+    public synchronized void removeSink(MetricsSink sink) {
+        var future = sinks.remove(sink);
+        if (future == null)
+            return;
+        future.cancel(false);
+        export(sink);
+        try {
+            sink.close();
+        } catch (IOException e) {
+            logger.warn("Error closing metrics sink {}", sink, e);
+        }
+    }
+
+    /**
+     * Export the current metrics to a sink immediately.
+     * @param sink the sink
+     */
+    public void export(MetricsSink sink) {
+        try {
+            sink.export(getMetrics());
+        } catch (Exception e) {
+            logger.warn("Unable to export metrics to {}: {}", sink, e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A single metric.
+     */
+    public sealed interface Metric permits Counter, Gauge, Timer {
+
+        /**
+         * Get the metric name.
+         * @return the name
+         */
+        String name();
+
+        /**
+         * Get a short description of the metric.
+         * @return the description
+         */
+        String help();
+
+    }
+
+    /**
+     * A counter, which can only increase.
+     */
+    public static final class Counter implements Metric {
+
+        private final String name;
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Increment the counter by 1.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Increment the counter.
+         * @param amount the amount to add; must not be negative
+         */
+        public void increment(long amount) {
+            if (amount < 0)
+                throw new IllegalArgumentException("Counters can't be decremented");
+            count.add(amount);
+        }
+
+        /**
+         * Get the current count.
+         * @return the count
+         */
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+    }
+
+    /**
+     * A gauge, which reports a value that can go up and down.
+     */
+    public static final class Gauge implements Metric {
+
+        private final String name;
+        private final String help;
+        private final DoubleSupplier supplier;
+
+        private Gauge(String name, String help, DoubleSupplier supplier) {
+            this.name = name;
+            this.help = help;
+            this.supplier = supplier;
+        }
+
+        /**
+         * Get the current value.
+         * @return the value, or NaN if it can't be determined
+         */
+        public double get() {
+            try {
+                return supplier.getAsDouble();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to get value for gauge {}", name, e);
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+    }
+
+    /**
+     * A timer, which records the number of events and their total and maximum duration.
+     */
+    public static final class Timer implements Metric {
+
+        private final String name;
+        private final String help;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Record a duration.
+         * @param nanos the duration in nanoseconds
+         */
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Record the time elapsed since a start time.
+         * @param startNanos the start time, from {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Get the number of events recorded.
+         * @return the count
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Get the total duration of all events.
+         * @return the total in seconds
+         */
+        public double getTotalSeconds() {
+            return totalNanos.sum() / 1e9;
+        }
+
+        /**
+         * Get the longest duration recorded.
+         * @return the maximum in seconds
+         */
+        public double getMaxSeconds() {
+            return maxNanos.get() / 1e9;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package qupath.ext.instanseg.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * A destination for metrics exported from a {@link MetricsRegistry}.
+ */
+public interface MetricsSink extends Closeable {
+
+    /**
+     * Export the current value of all metrics.
+     * @param metrics the metrics
+     * @throws IOException if the metrics can't be exported
+     */
+    void export(Collection<? extends MetricsRegistry.Metric> metrics) throws IOException;
+
+    /**
+     * Release any resources used by the sink.
+     * The default implementation does nothing.
+     * @throws IOException if the sink can't be closed
+     */
+    @Override
+    default void close() throws IOException {}
+
+    /**
+     * Create a sink that writes metrics to a file in the Prometheus text format.
+     * The file is replaced atomically on each export, so it can be read by the node exporter textfile collector.
+     * @param path the file path, which should normally have the extension {@code .prom}
+     * @return the sink
+     */
+    static MetricsSink prometheusFile(Path path) {
+        return new PrometheusSinks.FileSink(path);
+    }
+
+    /**
+     * Create a sink that serves the most recently exported metrics over HTTP in the Prometheus text format,
+     * at {@code http://localhost:<port>/metrics}.
+     * The endpoint is not authenticated, so it is only available from the local machine.
+     * @param port the port
+     * @return the sink
+     * @throws IOException if the server can't be started
+     */
+    static MetricsSink prometheusHttp(int port) throws IOException {
+        return new PrometheusSinks.HttpSink(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Create a sink that serves the most recently exported metrics over HTTP in the Prometheus text format,
+     * at {@code http://<host>:<port>/metrics}.
+     * <p>
+     * The endpoint is not authenticated, so binding to anything other than the loopback address makes the
+     * metrics available to anyone who can reach the host.
+     * @param host the host name or address to bind to
+     * @param port the port
+     * @return the sink
+     * @throws IOException if the host can't be resolved, or the server can't be started
+     */
+    static MetricsSink prometheusHttp(String host, int port) throws IOException {
+        return new PrometheusSinks.HttpSink(InetAddress.getByName(host), port);
+    }
+
+}
@@ -0,0 +1,246 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Helper class for downloading and extracting zipped models.
+ * <p>
+ * Downloads are written to a temporary {@code .part} file, which is resumed with an HTTP range request if a previous
+ * download was interrupted. The file is only moved to its final location once it is complete, and its SHA-256
+ * checksum has been verified (if known).
+ * <p>
+ * Extracted models are written to a temporary directory and contain a completion marker file, so that a complete
+ * model can be recognized without parsing its contents.
+ * Large files are moved into a {@link ModelStore}, and their checksums recorded in the marker.
+ */
+class ModelDownloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelDownloader.class);
+
+    /**
+     * Name of the marker file written to a model directory once extraction is complete.
+     */
+    static final String COMPLETION_MARKER = ".instanseg-complete";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private ModelDownloader() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Download a file, resuming a previous partial download if possible.
+     * @param url the URL to download from
+     * @param target the path of the downloaded file
+     * @param expectedSha256 the expected SHA-256 checksum as a hex string, or null if this is unknown
+     * @return the SHA-256 checksum of the downloaded file
+     * @throws IOException if the download fails, or the checksum doesn't match
+     */
+    static String download(URL url, Path target, String expectedSha256) throws IOException {
+        Files.createDirectories(target.getParent());
+        var partFile = target.resolveSibling(target.getFileName() + ".part");
+        var digest = createDigest();
+
+        boolean append = false;
+        InputStream stream;
+        if (url.getProtocol().startsWith("http")) {
+            long existing = Files.exists(partFile) ? Files.size(partFile) : 0;
+            var connection = (HttpURLConnection)url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (existing > 0) {
+                connection.setRequestProperty("Range", "bytes=" + existing + "-");
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                logger.info("Resuming download of {} from {} bytes", url, existing);
+                append = true;
+            } else if (code == 416 && existing > 0) {
+                // Requested range not satisfiable - we already have the whole file
+                logger.debug("Partial download of {} is already complete", url);
+                connection.disconnect();
+                return finish(partFile, target, updateDigest(digest, partFile), expectedSha256);
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("Unable to download " + url + " (HTTP " + code + ")");
+            }
+            stream = connection.getInputStream();
+        } else {
+            stream = url.openStream();
+        }
+
+        if (append) {
+            updateDigest(digest, partFile);
+        }
+        try (var in = new DigestInputStream(new BufferedInputStream(stream, BUFFER_SIZE), digest);
+             var out = Files.newOutputStream(partFile, append ?
+                     new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.APPEND} :
+                     new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE})) {
+            in.transferTo(out);
+        }
+        return finish(partFile, target, digest, expectedSha256);
+    }
+
+    private static String finish(Path partFile, Path target, MessageDigest digest, String expectedSha256) throws IOException {
+        String sha256 = HexFormat.of().formatHex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+            // Don't keep the file, since resuming a corrupt download won't help
+            Files.deleteIfExists(partFile);
+            throw new IOException("Checksum mismatch for " + target.getFileName() +
+                    ": expected " + expectedSha256 + " but found " + sha256);
+        }
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return sha256;
+    }
+
+    /**
+     * Extract a zip file to a directory, writing a completion marker when done.
+     * The contents are extracted to a temporary sibling directory first, and only moved to the destination once
+     * extraction has succeeded.
+     * Large files are stored in a blob directory that is also a sibling of the destination.
+     * @param zipFile the zip file
+     * @param destination the directory that should contain the extracted files
+     * @param sha256 the checksum of the zip file, to record in the completion marker (may be null)
+     * @throws IOException if the zip file can't be read or the files can't be written
+     */
+    static void extract(Path zipFile, Path destination, String sha256) throws IOException {
+        // Use a hidden directory name, so that partially-extracted models aren't discovered
+        var tempDir = destination.resolveSibling("." + destination.getFileName() + ".tmp");
+        deleteRecursively(tempDir);
+        Files.createDirectories(tempDir);
+        var root = tempDir.toAbsolutePath().normalize();
+        try (var zipIn = new ZipInputStream(new BufferedInputStream(Files.newInputStream(zipFile), BUFFER_SIZE))) {
+            ZipEntry entry;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                var filePath = root.resolve(entry.getName()).normalize();
+                // Guard against entries that try to escape the destination directory
+                if (!filePath.startsWith(root)) {
+                    throw new IOException("Invalid zip entry: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(filePath);
+                } else {
+                    Files.createDirectories(filePath.getParent());
+                    Files.copy(zipIn, filePath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                zipIn.closeEntry();
+            }
+            var blobDir = destination.resolveSibling(ModelStore.BLOB_DIRECTORY);
+            var checksums = ModelStore.storeLargeFiles(tempDir, blobDir);
+            writeCompletionMarker(tempDir, sha256, checksums);
+            deleteRecursively(destination);
+            Files.move(tempDir, destination, StandardCopyOption.ATOMIC_MOVE);
+            // If we replaced an older version of the model, its files may no longer be needed
+            removeUnusedBlobs(blobDir);
+        } catch (IOException e) {
+            deleteRecursively(tempDir);
+            throw e;
+        }
+    }
+
+    private static void removeUnusedBlobs(Path blobDir) {
+        try {
+            ModelStore.removeUnusedBlobs(blobDir);
+        } catch (IOException e) {
+            logger.warn("Unable to remove unused model files from {}", blobDir, e);
+        }
+    }
+
+    /**
+     * Check if a directory contains a completion marker, indicating that a model has been fully extracted.
+     * @param dir the directory
+     * @return true if the marker is present, false otherwise
+     */
+    static boolean isComplete(Path dir) {
+        return Files.isRegularFile(dir.resolve(COMPLETION_MARKER));
+    }
+
+    /**
+     * Read the properties stored in a completion marker.
+     * @param dir the model directory
+     * @return the properties, which will be empty if the marker is missing or can't be read
+     */
+    static Properties readCompletionMarker(Path dir) {
+        var props = new Properties();
+        var marker = dir.resolve(COMPLETION_MARKER);
+        if (Files.isRegularFile(marker)) {
+            try (Reader reader = Files.newBufferedReader(marker, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            } catch (IOException e) {
+                logger.warn("Unable to read completion marker {}", marker, e);
+            }
+        }
+        return props;
+    }
+
+    private static void writeCompletionMarker(Path dir, String sha256, Map<String, String> checksums) throws IOException {
+        var props = new Properties();
+        if (sha256 != null)
+            props.setProperty("sha256", sha256);
+        props.putAll(checksums);
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(COMPLETION_MARKER), StandardCharsets.UTF_8)) {
+            props.store(writer, "InstanSeg model extracted successfully");
+        }
+    }
+
+    /**
+     * Compute the SHA-256 checksum of a file.
+     * @param path the file
+     * @return the checksum as a lowercase hex string
+     * @throws IOException if the file can't be read
+     */
+    static String sha256(Path path) throws IOException {
+        return HexFormat.of().formatHex(updateDigest(createDigest(), path).digest());
+    }
+
+    private static MessageDigest updateDigest(MessageDigest digest, Path path) throws IOException {
+        try (var in = new DigestInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (var stream = Files.walk(path)) {
+            for (var p : stream.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+}
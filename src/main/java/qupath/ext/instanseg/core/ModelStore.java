@@ -0,0 +1,281 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content-addressed storage for large model files.
+ * <p>
+ * Large files (i.e. the TorchScript weights) are moved into a shared blob directory, named by their SHA-256
+ * checksum, and replaced by a relative symbolic link in the model directory.
+ * This means identical weights shipped under different model names are only stored once.
+ * <p>
+ * A model can be validated quickly by comparing link targets (or file sizes) with the checksums recorded in its
+ * completion marker - without needing to read the weights again.
+ * The content of the files can also be checked with {@link #verifyContents(Path)}, which is much slower and
+ * should only be called from a background thread. Each file is hashed at most once per session, unless its size
+ * or last modified time changes, and any file found to be corrupt causes {@link #verify(Path)} to fail too.
+ * Blobs that are no longer referenced by any model (e.g. because a model was deleted or updated) can be removed
+ * with {@link #removeUnusedBlobs(Path)}.
+ * <p>
+ * If symbolic links aren't supported (e.g. on Windows without the required permissions), a hard link is tried
+ * instead; if that also fails, the model keeps its own copy of the file.
+ */
+class ModelStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelStore.class);
+
+    /**
+     * Name of the blob directory, created alongside the model directories.
+     */
+    static final String BLOB_DIRECTORY = ".blobs";
+
+    private static final String CHECKSUM_PREFIX = "file.";
+    private static final String SIZE_PREFIX = "size.";
+
+    /**
+     * Files smaller than this are left in the model directory.
+     */
+    private static final long MIN_BLOB_SIZE = 1024 * 1024;
+
+    /**
+     * Unreferenced blobs modified more recently than this are kept, since they may belong to a model that is
+     * still being extracted.
+     */
+    private static final long MIN_UNUSED_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Files whose content has been checked in this session, mapped to the checksum, size and last modified time
+     * when they were checked.
+     */
+    private static final Map<Path, String> verifiedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Files in model directories whose content didn't match the recorded checksum when last checked.
+     */
+    private static final Set<Path> corruptFiles = ConcurrentHashMap.newKeySet();
+
+    private ModelStore() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Move large files from a model directory into the blob directory, replacing them with links.
+     * @param modelDir the (possibly temporary) model directory; its parent is used to locate the blob directory
+     * @param blobDir the blob directory
+     * @return properties recording the checksum and size of each file that was stored, for the completion marker
+     * @throws IOException if the files can't be read or moved
+     */
+    static Map<String, String> storeLargeFiles(Path modelDir, Path blobDir) throws IOException {
+        Map<String, String> props = new LinkedHashMap<>();
+        Files.createDirectories(blobDir);
+        try (var stream = Files.list(modelDir)) {
+            for (var file : stream.filter(Files::isRegularFile).toList()) {
+                long size = Files.size(file);
+                if (size < MIN_BLOB_SIZE)
+                    continue;
+                String sha256 = ModelDownloader.sha256(file);
+                var blob = blobDir.resolve(sha256);
+                if (Files.exists(blob)) {
+                    logger.debug("Reusing existing blob for {}", file.getFileName());
+                    Files.delete(file);
+                    // Update the modified time, so that the blob isn't removed before the model is complete
+                    Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+                } else {
+                    Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+                // We've just computed the checksum, so don't need to do it again when the model is verified
+                markVerified(blob, sha256);
+                link(file, blob);
+                String name = file.getFileName().toString();
+                props.put(CHECKSUM_PREFIX + name, sha256);
+                props.put(SIZE_PREFIX + name, Long.toString(size));
+            }
+        }
+        return props;
+    }
+
+    private static void link(Path link, Path blob) throws IOException {
+        try {
+            // Use a relative link, so that the whole model directory can be moved
+            Files.createSymbolicLink(link, link.getParent().toAbsolutePath().relativize(blob.toAbsolutePath()));
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to create symbolic link for {}", link, e);
+        }
+        try {
+            Files.createLink(link, blob);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to create hard link for {} - will copy instead", link, e);
+            Files.copy(blob, link);
+        }
+    }
+
+    /**
+     * Verify that all the files recorded in a model's completion marker are present and unchanged.
+     * Links are checked by comparing the name of their target with the recorded checksum; other files are
+     * checked by size. Files are not read, so this is fast enough to call from the UI thread - but it also fails
+     * if {@link #verifyContents(Path)} has found a file to be corrupt.
+     * @param modelDir the model directory
+     * @return true if all recorded files are valid, false otherwise
+     */
+    static boolean verify(Path modelDir) {
+        return verify(modelDir, false);
+    }
+
+    /**
+     * Verify that all the files recorded in a model's completion marker are present and have the expected
+     * checksums.
+     * <p>
+     * This reads every file that hasn't already been checked in this session (or has been modified since),
+     * so it may be slow and should not be called from the UI thread.
+     * @param modelDir the model directory
+     * @return true if all recorded files are valid, false otherwise
+     */
+    static boolean verifyContents(Path modelDir) {
+        return verify(modelDir, true);
+    }
+
+    private static boolean verify(Path modelDir, boolean checkContents) {
+        var props = ModelDownloader.readCompletionMarker(modelDir);
+        for (var key : props.stringPropertyNames()) {
+            if (!key.startsWith(CHECKSUM_PREFIX))
+                continue;
+            String name = key.substring(CHECKSUM_PREFIX.length());
+            String sha256 = props.getProperty(key);
+            var file = modelDir.resolve(name);
+            try {
+                if (!Files.exists(file)) {
+                    logger.debug("Missing model file {}", file);
+                    return false;
+                }
+                if (Files.isSymbolicLink(file)) {
+                    var target = Files.readSymbolicLink(file);
+                    if (!sha256.equals(String.valueOf(target.getFileName()))) {
+                        logger.debug("Unexpected link target for {}: {}", file, target);
+                        return false;
+                    }
+                } else {
+                    String size = props.getProperty(SIZE_PREFIX + name);
+                    if (size != null && Files.size(file) != Long.parseLong(size)) {
+                        logger.debug("Unexpected size for {}", file);
+                        return false;
+                    }
+                }
+                var filePath = file.toAbsolutePath().normalize();
+                if (checkContents) {
+                    if (!hasChecksum(file, sha256)) {
+                        logger.warn("Checksum mismatch for model file {}", file);
+                        corruptFiles.add(filePath);
+                        return false;
+                    }
+                    corruptFiles.remove(filePath);
+                } else if (corruptFiles.contains(filePath)) {
+                    logger.debug("Model file {} is corrupt", file);
+                    return false;
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.debug("Unable to verify {}", file, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the content of a file has the specified checksum, reusing the result of any previous check
+     * in this session if the file hasn't been modified since.
+     */
+    private static boolean hasChecksum(Path file, String sha256) throws IOException {
+        var realPath = file.toRealPath();
+        var stamp = createStamp(realPath, sha256);
+        if (stamp.equals(verifiedFiles.get(realPath)))
+            return true;
+        if (!sha256.equalsIgnoreCase(ModelDownloader.sha256(realPath))) {
+            verifiedFiles.remove(realPath);
+            return false;
+        }
+        verifiedFiles.put(realPath, stamp);
+        return true;
+    }
+
+    private static void markVerified(Path file, String sha256) throws IOException {
+        var realPath = file.toRealPath();
+        verifiedFiles.put(realPath, createStamp(realPath, sha256));
+    }
+
+    private static String createStamp(Path file, String sha256) throws IOException {
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return sha256 + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Remove blobs that are not used by any model.
+     * <p>
+     * Models are found in the parent of the blob directory, which contains the downloaded models.
+     * A blob is used if its checksum is recorded in a model's completion marker, or if it is the target of a
+     * link in any model directory (including those that are still being extracted).
+     * Unused blobs that were modified recently are kept, in case they belong to a model that is being extracted.
+     * @param blobDir the blob directory
+     * @return the number of blobs that were removed
+     * @throws IOException if the directories can't be listed
+     */
+    static int removeUnusedBlobs(Path blobDir) throws IOException {
+        if (!Files.isDirectory(blobDir))
+            return 0;
+        Set<String> used = new HashSet<>();
+        try (var stream = Files.list(blobDir.getParent())) {
+            for (var dir : stream.filter(Files::isDirectory).toList()) {
+                if (Files.isSameFile(dir, blobDir))
+                    continue;
+                var props = ModelDownloader.readCompletionMarker(dir);
+                for (var key : props.stringPropertyNames()) {
+                    if (key.startsWith(CHECKSUM_PREFIX))
+                        used.add(props.getProperty(key));
+                }
+                try (var files = Files.list(dir)) {
+                    for (var file : files.filter(Files::isSymbolicLink).toList()) {
+                        used.add(String.valueOf(Files.readSymbolicLink(file).getFileName()));
+                    }
+                }
+            }
+        }
+        long cutoff = System.currentTimeMillis() - MIN_UNUSED_AGE_MILLIS;
+        int nRemoved = 0;
+        try (var stream = Files.list(blobDir)) {
+            for (var blob : stream.filter(Files::isRegularFile).toList()) {
+                if (used.contains(blob.getFileName().toString()) || Files.getLastModifiedTime(blob).toMillis() > cutoff)
+                    continue;
+                logger.info("Removing unused model file {}", blob);
+                verifiedFiles.remove(blob.toRealPath());
+                Files.delete(blob);
+                nRemoved++;
+            }
+        }
+        return nRemoved;
+    }
+
+    /**
+     * Get the checksum recorded for a file in a model directory.
+     * @param modelDir the model directory
+     * @param name the file name
+     * @return the checksum, or null if none is recorded
+     */
+    static String getChecksum(Path modelDir, String name) {
+        return ModelDownloader.readCompletionMarker(modelDir).getProperty(CHECKSUM_PREFIX + name);
+    }
+
+}
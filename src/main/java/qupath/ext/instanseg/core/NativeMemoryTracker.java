@@ -0,0 +1,137 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Track the native memory allocated for tensors by a single predictor.
+ * <p>
+ * The tracker for the predictor running on the current thread is available from {@link #current()},
+ * so that it can be updated by the translator without needing to be passed through DJL.
+ */
+final class NativeMemoryTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeMemoryTracker.class);
+
+    private static final ThreadLocal<NativeMemoryTracker> CURRENT = new ThreadLocal<>();
+
+    private static final Path PROC_STATUS = Path.of("/proc/self/status");
+
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private volatile long lastTileBytes = -1;
+
+    /**
+     * Get the tracker for the predictor running on the current thread.
+     * @return the tracker, or null if none is set
+     */
+    static NativeMemoryTracker current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Set the tracker for the current thread.
+     * @param tracker the tracker, or null to remove any existing tracker
+     */
+    static void setCurrent(NativeMemoryTracker tracker) {
+        if (tracker == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(tracker);
+    }
+
+    /**
+     * Create a scope for the arrays of a single tile.
+     * The scope should be closed when the arrays are released.
+     * @return the scope
+     */
+    TileScope newTileScope() {
+        return new TileScope();
+    }
+
+    /**
+     * Get the number of bytes allocated for tiles that have not yet been released.
+     * This should return to zero whenever the predictor is idle.
+     * @return the number of bytes
+     */
+    long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * Get the largest number of bytes that have been live at any one time.
+     * @return the number of bytes
+     */
+    long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    /**
+     * Get the number of bytes allocated for the most recently released tile.
+     * @return the number of bytes, or -1 if no tile has been released
+     */
+    long getLastTileBytes() {
+        return lastTileBytes;
+    }
+
+    /**
+     * Get the resident set size of the current process.
+     * This includes the Java heap as well as native memory, and is currently only available on Linux.
+     * @return the number of bytes, or -1 if unknown
+     */
+    static long getResidentBytes() {
+        if (!Files.isReadable(PROC_STATUS))
+            return -1;
+        try {
+            for (var line : Files.readAllLines(PROC_STATUS, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    // Format is 'VmRSS:    123456 kB'
+                    var value = line.substring("VmRSS:".length()).strip().split("\\s+")[0];
+                    return Long.parseLong(value) * 1024L;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Unable to read resident set size", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Accumulates the bytes allocated for a single tile, and releases them from the tracker when closed.
+     */
+    final class TileScope implements AutoCloseable {
+
+        private long bytes;
+        private boolean isClosed;
+
+        private TileScope() {}
+
+        /**
+         * Record bytes allocated for this tile.
+         * @param nBytes the number of bytes
+         */
+        synchronized void add(long nBytes) {
+            if (isClosed || nBytes <= 0)
+                return;
+            bytes += nBytes;
+            peakBytes.accumulateAndGet(liveBytes.addAndGet(nBytes), Math::max);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isClosed)
+                return;
+            isClosed = true;
+            liveBytes.addAndGet(-bytes);
+            lastTileBytes = bytes;
+        }
+
+    }
+
+}
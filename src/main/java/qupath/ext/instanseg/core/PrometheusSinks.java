@@ -0,0 +1,136 @@
+package qupath.ext.instanseg.core;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Metrics sinks using the Prometheus text exposition format.
+ */
+class PrometheusSinks {
+
+    private PrometheusSinks() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Format metrics using the Prometheus text format.
+     * Timers are written as summaries (with {@code _count} and {@code _sum}), plus a gauge for the maximum.
+     * @param metrics the metrics
+     * @return the formatted text
+     */
+    static String format(Collection<? extends MetricsRegistry.Metric> metrics) {
+        var sb = new StringBuilder();
+        for (var metric : metrics) {
+            if (metric instanceof MetricsRegistry.Counter counter) {
+                appendHeader(sb, counter.name(), counter.help(), "counter");
+                appendValue(sb, counter.name(), counter.get());
+            } else if (metric instanceof MetricsRegistry.Gauge gauge) {
+                appendHeader(sb, gauge.name(), gauge.help(), "gauge");
+                appendValue(sb, gauge.name(), gauge.get());
+            } else if (metric instanceof MetricsRegistry.Timer timer) {
+                appendHeader(sb, timer.name(), timer.help(), "summary");
+                appendValue(sb, timer.name() + "_count", timer.getCount());
+                appendValue(sb, timer.name() + "_sum", timer.getTotalSeconds());
+                appendHeader(sb, timer.name() + "_max", "Maximum of " + timer.help(), "gauge");
+                appendValue(sb, timer.name() + "_max", timer.getMaxSeconds());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendHeader(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ')
+                .append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+                .append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendValue(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ');
+        if (Double.isNaN(value))
+            sb.append("NaN");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            sb.append((long)value);
+        else
+            sb.append(String.format(Locale.ROOT, "%.6g", value));
+        sb.append('\n');
+    }
+
+    static class FileSink implements MetricsSink {
+
+        private final Path path;
+
+        FileSink(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public void export(Collection<? extends MetricsRegistry.Metric> metrics) throws IOException {
+            var parent = path.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            // Write to a temp file and move, so that readers never see a partial file
+            var temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+            try {
+                Files.writeString(temp, format(metrics), StandardCharsets.UTF_8);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Prometheus file " + path;
+        }
+
+    }
+
+    static class HttpSink implements MetricsSink {
+
+        private final HttpServer server;
+        private volatile byte[] latest = new byte[0];
+
+        HttpSink(InetAddress address, int port) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(address, port), 0);
+            server.createContext("/metrics", exchange -> {
+                try {
+                    var bytes = latest;
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        @Override
+        public void export(Collection<? extends MetricsRegistry.Metric> metrics) {
+            latest = format(metrics).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+
+        @Override
+        public String toString() {
+            var address = server.getAddress();
+            return "Prometheus HTTP endpoint on " + address.getHostString() + ":" + address.getPort();
+        }
+
+    }
+
+}
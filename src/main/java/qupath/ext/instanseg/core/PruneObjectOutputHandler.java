@@ -13,6 +13,7 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
 
     private final OutputToObjectConverter<S, T, U> converter;
     private final int boundaryThreshold;
+    private final StageTimes stageTimes;
 
     /**
      * An output handler that prunes the output, removing any objects that are
@@ -29,8 +30,19 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
      *                          See {@link #doesntTouchBoundaries} for more details.
      */
     PruneObjectOutputHandler(OutputToObjectConverter<S, T, U> converter, int boundaryThreshold) {
+        this(converter, boundaryThreshold, null);
+    }
+
+    /**
+     * An output handler that prunes the output, and records the time spent converting and pruning objects.
+     * @param converter An output to object converter.
+     * @param boundaryThreshold The size of the boundary, in pixels, to use for removing objects.
+     * @param stageTimes Optional object to record the time taken for each stage; may be null.
+     */
+    PruneObjectOutputHandler(OutputToObjectConverter<S, T, U> converter, int boundaryThreshold, StageTimes stageTimes) {
         this.converter = converter;
         this.boundaryThreshold = boundaryThreshold;
+        this.stageTimes = stageTimes;
     }
 
     @Override
@@ -38,9 +50,23 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
         if (output == null)
             return false;
         else {
+            var request = params.getRegionRequest();
+            int tileWidth = (int)Math.round(request.getWidth() / request.getDownsample());
+            int tileHeight = (int)Math.round(request.getHeight() / request.getDownsample());
+
+            long startConvert = StageTimes.start();
+            var convertEvent = new InstanSegEvents.Convert();
+            convertEvent.begin();
             List<PathObject> newObjects = converter.convertToObjects(params, output);
+            convertEvent.objectCount = newObjects == null ? 0 : newObjects.size();
+            convertEvent.finish(request, tileWidth, tileHeight);
+            if (stageTimes != null)
+                stageTimes.record(StageTimes.CONVERT, startConvert);
             if (newObjects == null)
                 return false;
+            long startPrune = StageTimes.start();
+            var pruneEvent = new InstanSegEvents.Prune();
+            pruneEvent.begin();
             // If using a proxy object (eg tile),
             // we want to remove things touching the tile boundary,
             // then add the objects to the proxy rather than the parent
@@ -66,6 +92,10 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
             }
             parentOrProxy.addChildObjects(newObjects);
             parentOrProxy.setLocked(true);
+            pruneEvent.objectCount = newObjects.size();
+            pruneEvent.finish(request, tileWidth, tileHeight);
+            if (stageTimes != null)
+                stageTimes.record(StageTimes.PRUNE, startPrune);
             return true;
         }
     }
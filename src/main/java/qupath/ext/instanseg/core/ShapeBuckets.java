@@ -0,0 +1,81 @@
+package qupath.ext.instanseg.core;
+
+import java.util.Arrays;
+
+/**
+ * A small set of allowed input sizes, used to pad tiles of arbitrary size.
+ * <p>
+ * Tiles at the edge of an image or ROI can have almost any size. Passing many different shapes to a TorchScript
+ * model can be slow, because the engine may need to re-specialize for each new shape; on the other hand, padding
+ * every tile to the full tile size wastes computation.
+ * Shape buckets are a compromise: each tile is padded up to the next of a few sizes, which are all valid inputs
+ * according to the model spec.
+ */
+class ShapeBuckets {
+
+    private final int[] widths;
+    private final int[] heights;
+    private final InstanSegModel.ShapeConstraints constraints;
+
+    private ShapeBuckets(int[] widths, int[] heights, InstanSegModel.ShapeConstraints constraints) {
+        this.widths = widths;
+        this.heights = heights;
+        this.constraints = constraints;
+    }
+
+    /**
+     * Create buckets that evenly divide the full tile size.
+     * @param tileWidth the full tile width
+     * @param tileHeight the full tile height
+     * @param nBuckets the number of buckets for each dimension
+     * @param constraints the constraints on the input shape from the model spec
+     * @return the buckets
+     */
+    static ShapeBuckets create(int tileWidth, int tileHeight, int nBuckets, InstanSegModel.ShapeConstraints constraints) {
+        if (constraints == null)
+            constraints = InstanSegModel.ShapeConstraints.ANY;
+        int n = Math.max(1, nBuckets);
+        int[] widths = new int[n];
+        int[] heights = new int[n];
+        for (int i = 0; i < n; i++) {
+            widths[i] = constraints.roundUpWidth((int)Math.ceil(tileWidth * (i + 1.0) / n));
+            heights[i] = constraints.roundUpHeight((int)Math.ceil(tileHeight * (i + 1.0) / n));
+        }
+        return new ShapeBuckets(
+                Arrays.stream(widths).distinct().sorted().toArray(),
+                Arrays.stream(heights).distinct().sorted().toArray(),
+                constraints);
+    }
+
+    /**
+     * Get the padded width for a tile.
+     * @param width the tile width
+     * @return the smallest bucket that can contain the width, or a valid width if the tile is larger than all buckets
+     */
+    int getWidth(int width) {
+        return find(widths, width, constraints.roundUpWidth(width));
+    }
+
+    /**
+     * Get the padded height for a tile.
+     * @param height the tile height
+     * @return the smallest bucket that can contain the height, or a valid height if the tile is larger than all buckets
+     */
+    int getHeight(int height) {
+        return find(heights, height, constraints.roundUpHeight(height));
+    }
+
+    private static int find(int[] buckets, int size, int fallback) {
+        for (int b : buckets) {
+            if (b >= size)
+                return b;
+        }
+        return fallback;
+    }
+
+    @Override
+    public String toString() {
+        return "ShapeBuckets[widths=" + Arrays.toString(widths) + ", heights=" + Arrays.toString(heights) + "]";
+    }
+
+}
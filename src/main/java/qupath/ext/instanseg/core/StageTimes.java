@@ -0,0 +1,64 @@
+package qupath.ext.instanseg.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the time spent in each stage of processing, summed across all threads.
+ * <p>
+ * Because tiles are processed in parallel, the total for a stage can be longer than the elapsed time.
+ * The totals are most useful for seeing where time is spent relative to other stages.
+ */
+class StageTimes {
+
+    static final String READ = "read";
+    static final String NORMALIZE = "normalize";
+    static final String WAIT_FOR_PREDICTOR = "wait";
+    static final String PREDICT = "predict";
+    static final String CONVERT = "convert";
+    static final String PRUNE = "prune";
+    static final String MERGE = "merge";
+
+    private static final List<String> STAGES = List.of(READ, NORMALIZE, WAIT_FOR_PREDICTOR, PREDICT, CONVERT, PRUNE, MERGE);
+
+    private final Map<String, LongAdder> nanos = new ConcurrentHashMap<>();
+
+    /**
+     * Get a start time for use with {@link #record(String, long)}.
+     * @return the current value of {@link System#nanoTime()}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed for a stage.
+     * @param stage the name of the stage
+     * @param startNanos the start time, from {@link #start()}
+     * @return the elapsed time in nanoseconds
+     */
+    long record(String stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        nanos.computeIfAbsent(stage, k -> new LongAdder()).add(elapsed);
+        return elapsed;
+    }
+
+    /**
+     * Get the total time for each stage in milliseconds, in processing order.
+     * @return a map from stage name to total milliseconds
+     */
+    Map<String, Long> getMillis() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (var stage : STAGES) {
+            var total = nanos.get(stage);
+            if (total != null)
+                map.put(stage, TimeUnit.NANOSECONDS.toMillis(total.sum()));
+        }
+        return map;
+    }
+
+}
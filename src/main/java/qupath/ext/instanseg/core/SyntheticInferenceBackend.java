@@ -0,0 +1,288 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * An inference backend that doesn't run a model, but instead generates label images containing circular objects.
+ * <p>
+ * This is intended for load testing and benchmarking, where it is useful to exercise tiling, object conversion,
+ * merging and measurement without needing PyTorch, a GPU or a downloaded model.
+ * The number and size of objects can be controlled, along with the simulated inference latency.
+ * <p>
+ * Outputs are deterministic: the same tile always gives the same labels, because the random seed is derived from
+ * the tile content.
+ */
+public final class SyntheticInferenceBackend implements InferenceBackend {
+
+    private final double objectsPerMegapixel;
+    private final double meanRadius;
+    private final double radiusStdDev;
+    private final double cellExpansion;
+    private final int nOutputChannels;
+    private final long latencyMillis;
+    private final double latencyMillisPerMegapixel;
+    private final long seed;
+
+    private SyntheticInferenceBackend(Builder builder) {
+        this.objectsPerMegapixel = builder.objectsPerMegapixel;
+        this.meanRadius = builder.meanRadius;
+        this.radiusStdDev = builder.radiusStdDev;
+        this.cellExpansion = builder.cellExpansion;
+        this.nOutputChannels = builder.nOutputChannels;
+        this.latencyMillis = builder.latencyMillis;
+        this.latencyMillisPerMegapixel = builder.latencyMillisPerMegapixel;
+        this.seed = builder.seed;
+    }
+
+    /**
+     * Create a builder for a synthetic backend.
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public LoadedModel load(Path modelPath, Device device, boolean[] outputChannels, int nPredictors) throws IOException {
+        if (outputChannels != null) {
+            for (int c = nOutputChannels; c < outputChannels.length; c++) {
+                if (outputChannels[c])
+                    throw new IOException("Output channel " + c + " requested, but only " + nOutputChannels + " available");
+            }
+        }
+        List<TilePredictor> predictors = new ArrayList<>();
+        for (int i = 0; i < nPredictors; i++) {
+            predictors.add(new SyntheticPredictor(String.valueOf(device), outputChannels));
+        }
+        return new SyntheticModel(List.copyOf(predictors));
+    }
+
+    @Override
+    public boolean requiresModelFile() {
+        return false;
+    }
+
+    /**
+     * Generate a label image for a tile.
+     * @param width the tile width
+     * @param height the tile height
+     * @param tileSeed seed for the tile
+     * @param outputChannels boolean array of the output channels to retain, or null to retain all
+     * @return the labels, with type CV_32S
+     */
+    Mat generateLabels(int width, int height, long tileSeed, boolean[] outputChannels) {
+        var rng = new Random(seed ^ tileSeed);
+        double expected = objectsPerMegapixel * width * height / 1e6;
+        // Vary the number of objects a little, so that tiles aren't all identical in cost
+        int nObjects = (int)Math.max(0, Math.round(expected + rng.nextGaussian() * Math.sqrt(expected)));
+
+        var nuclei = new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0));
+        var cells = nOutputChannels > 1 ? new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0)) : null;
+        for (int i = 1; i <= nObjects; i++) {
+            var center = new Point(rng.nextInt(width), rng.nextInt(height));
+            int radius = (int)Math.max(1, Math.round(meanRadius + rng.nextGaussian() * radiusStdDev));
+            if (cells != null)
+                opencv_imgproc.circle(cells, center, (int)Math.round(radius * cellExpansion), Scalar.all(i), -1, opencv_imgproc.LINE_8, 0);
+            opencv_imgproc.circle(nuclei, center, radius, Scalar.all(i), -1, opencv_imgproc.LINE_8, 0);
+        }
+
+        List<Mat> channels = new ArrayList<>();
+        channels.add(nuclei);
+        if (cells != null)
+            channels.add(cells);
+        if (outputChannels != null) {
+            List<Mat> selected = new ArrayList<>();
+            for (int c = 0; c < channels.size(); c++) {
+                if (c < outputChannels.length && outputChannels[c])
+                    selected.add(channels.get(c));
+            }
+            channels = selected;
+        }
+        if (channels.size() == 1)
+            return channels.getFirst();
+        var output = new Mat();
+        opencv_core.merge(new MatVector(channels.toArray(Mat[]::new)), output);
+        return output;
+    }
+
+    /**
+     * Derive a seed from the tile content, so that the same tile always gives the same output.
+     */
+    private static long computeTileSeed(Mat input) {
+        var sum = opencv_core.sumElems(input);
+        long hash = 31L * input.rows() + input.cols();
+        for (int i = 0; i < 4; i++) {
+            hash = 31 * hash + Double.hashCode(sum.get(i));
+        }
+        return hash;
+    }
+
+    private void simulateLatency(Mat input) throws InterruptedException {
+        long millis = latencyMillis + Math.round(latencyMillisPerMegapixel * input.rows() * input.cols() / 1e6);
+        if (millis > 0)
+            Thread.sleep(millis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "Synthetic (%.1f objects/MP, radius %.1f+/-%.1f px, %d channels, latency %d ms + %.1f ms/MP, seed %d)",
+                objectsPerMegapixel, meanRadius, radiusStdDev, nOutputChannels, latencyMillis, latencyMillisPerMegapixel, seed);
+    }
+
+    private record SyntheticModel(List<TilePredictor> predictors) implements LoadedModel {
+
+        @Override
+        public List<TilePredictor> getPredictors() {
+            return predictors;
+        }
+
+        @Override
+        public void close() {
+            predictors.forEach(TilePredictor::close);
+        }
+
+    }
+
+    private class SyntheticPredictor implements TilePredictor {
+
+        private final String deviceName;
+        private final boolean[] outputChannels;
+
+        private SyntheticPredictor(String deviceName, boolean[] outputChannels) {
+            this.deviceName = deviceName;
+            this.outputChannels = outputChannels == null ? null : outputChannels.clone();
+        }
+
+        @Override
+        public Mat predict(Mat input) throws InterruptedException {
+            simulateLatency(input);
+            return generateLabels(input.cols(), input.rows(), computeTileSeed(input), outputChannels);
+        }
+
+        @Override
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @Override
+        public void close() {}
+
+    }
+
+    /**
+     * Builder for a {@link SyntheticInferenceBackend}.
+     */
+    public static final class Builder {
+
+        private double objectsPerMegapixel = 2000;
+        private double meanRadius = 6;
+        private double radiusStdDev = 1.5;
+        private double cellExpansion = 2;
+        private int nOutputChannels = 2;
+        private long latencyMillis = 0;
+        private double latencyMillisPerMegapixel = 0;
+        private long seed = 42;
+
+        private Builder() {}
+
+        /**
+         * Set the average density of objects.
+         * @param objectsPerMegapixel the average number of objects per million pixels of each tile (default 2000)
+         * @return this builder
+         */
+        public Builder density(double objectsPerMegapixel) {
+            if (objectsPerMegapixel < 0)
+                throw new IllegalArgumentException("Density must be >= 0");
+            this.objectsPerMegapixel = objectsPerMegapixel;
+            return this;
+        }
+
+        /**
+         * Set the size of the nuclei.
+         * @param meanRadius the mean radius, in pixels (default 6)
+         * @param stdDev the standard deviation of the radius, in pixels (default 1.5)
+         * @return this builder
+         */
+        public Builder radius(double meanRadius, double stdDev) {
+            if (meanRadius <= 0 || stdDev < 0)
+                throw new IllegalArgumentException("Radius must be > 0 and standard deviation >= 0");
+            this.meanRadius = meanRadius;
+            this.radiusStdDev = stdDev;
+            return this;
+        }
+
+        /**
+         * Set the radius of each cell, relative to the radius of its nucleus.
+         * This is only used if there are two output channels.
+         * @param factor the cell radius divided by the nucleus radius (default 2)
+         * @return this builder
+         */
+        public Builder cellExpansion(double factor) {
+            if (factor < 1)
+                throw new IllegalArgumentException("Cell expansion must be >= 1");
+            this.cellExpansion = factor;
+            return this;
+        }
+
+        /**
+         * Set the number of output channels.
+         * @param nChannels 1 for nuclei only, or 2 for nuclei and cells (the default)
+         * @return this builder
+         */
+        public Builder outputChannels(int nChannels) {
+            if (nChannels < 1 || nChannels > 2)
+                throw new IllegalArgumentException("Number of output channels must be 1 or 2");
+            this.nOutputChannels = nChannels;
+            return this;
+        }
+
+        /**
+         * Set the simulated inference time for each tile.
+         * The predictor sleeps for this time, so that it behaves like a model running on another device.
+         * @param millis fixed latency per tile, in milliseconds (default 0)
+         * @param millisPerMegapixel additional latency per million pixels (default 0)
+         * @return this builder
+         */
+        public Builder latency(long millis, double millisPerMegapixel) {
+            if (millis < 0 || millisPerMegapixel < 0)
+                throw new IllegalArgumentException("Latency must be >= 0");
+            this.latencyMillis = millis;
+            this.latencyMillisPerMegapixel = millisPerMegapixel;
+            return this;
+        }
+
+        /**
+         * Set the random seed.
+         * @param seed the seed (default 42)
+         * @return this builder
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Build the backend.
+         * @return a new synthetic backend
+         */
+        public SyntheticInferenceBackend build() {
+            return new SyntheticInferenceBackend(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,225 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the label images output by InstanSeg for individual tiles.
+ * <p>
+ * This makes it possible to rerun InstanSeg on the same regions without running inference again, e.g. after
+ * deleting the detections or changing only the measurements.
+ * Tiles are identified by the image region, input channels, normalization, model weights and output channels -
+ * so a cached tile is only used if inference would produce the same result.
+ * <p>
+ * When a cache is used, tiles are aligned to a grid anchored to the image and normalized using the whole image.
+ * This means that after editing an annotation (or when detecting within a different annotation that overlaps it)
+ * only the tiles covering new parts of the image need inference.
+ * <p>
+ * Compressed label images are stored in memory up to a fixed size, with the least recently used tiles removed
+ * first. Optionally, tiles can also be written to a directory so that they can be reused across sessions;
+ * this directory is not cleaned up automatically.
+ * <p>
+ * A cache can safely be shared between InstanSeg instances and used from multiple threads.
+ */
+public class TileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
+
+    private static final String EXTENSION = ".labels";
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+
+    private final Map<String, byte[]> memoryCache = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes = 0;
+
+    private final AtomicLong nHits = new AtomicLong();
+    private final AtomicLong nMisses = new AtomicLong();
+
+    private TileCache(long maxMemoryBytes, Path directory) {
+        this.maxMemoryBytes = Math.max(0, maxMemoryBytes);
+        this.directory = directory;
+    }
+
+    /**
+     * Create a cache that stores tiles in memory only.
+     * @param maxMemoryBytes the maximum size of the (compressed) tiles to store in memory
+     * @return a new cache
+     */
+    public static TileCache createMemoryCache(long maxMemoryBytes) {
+        return new TileCache(maxMemoryBytes, null);
+    }
+
+    /**
+     * Create a cache that stores tiles in memory, and also in a directory on disk.
+     * @param maxMemoryBytes the maximum size of the (compressed) tiles to store in memory
+     * @param directory the directory used to store tiles
+     * @return a new cache
+     */
+    public static TileCache create(long maxMemoryBytes, Path directory) {
+        return new TileCache(maxMemoryBytes, directory);
+    }
+
+    /**
+     * Get a cached label image.
+     * @param key the key identifying the tile
+     * @return a new Mat containing the labels, or null if the tile is not in the cache
+     */
+    Mat get(String key) {
+        byte[] data;
+        synchronized (memoryCache) {
+            data = memoryCache.get(key);
+        }
+        if (data == null && directory != null) {
+            data = readFromDisk(key);
+            if (data != null)
+                putInMemory(key, data);
+        }
+        if (data == null) {
+            nMisses.incrementAndGet();
+            return null;
+        }
+        try {
+            var mat = LabelMatCodec.read(new DataInputStream(new ByteArrayInputStream(data)));
+            nHits.incrementAndGet();
+            return mat;
+        } catch (IOException e) {
+            logger.warn("Unable to read cached tile", e);
+            nMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Add a label image to the cache.
+     * @param key the key identifying the tile
+     * @param labels the label image; this is not retained, and may be modified after this method returns
+     */
+    void put(String key, Mat labels) {
+        byte[] data;
+        try {
+            var bytes = new ByteArrayOutputStream();
+            LabelMatCodec.write(labels, new DataOutputStream(bytes));
+            data = bytes.toByteArray();
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Unable to cache tile", e);
+            return;
+        }
+        putInMemory(key, data);
+        if (directory != null)
+            writeToDisk(key, data);
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        if (data.length > maxMemoryBytes)
+            return;
+        synchronized (memoryCache) {
+            var previous = memoryCache.put(key, data);
+            if (previous != null)
+                memoryBytes -= previous.length;
+            memoryBytes += data.length;
+            var iter = memoryCache.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iter.hasNext()) {
+                memoryBytes -= iter.next().length;
+                iter.remove();
+            }
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        var file = directory.resolve(hash(key) + EXTENSION);
+        if (!Files.isRegularFile(file))
+            return null;
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            // The key is stored to guard against hash collisions
+            if (!key.equals(input.readUTF()))
+                return null;
+            return input.readAllBytes();
+        } catch (IOException e) {
+            logger.debug("Unable to read cached tile from {}", file, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] data) {
+        var file = directory.resolve(hash(key) + EXTENSION);
+        try {
+            Files.createDirectories(directory);
+            var tempFile = Files.createTempFile(directory, ".tile", ".tmp");
+            try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                output.writeUTF(key);
+                output.write(data);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write cached tile to {}", file, e);
+        }
+    }
+
+    /**
+     * Remove all tiles from the memory cache.
+     * Tiles stored on disk are not removed.
+     */
+    public void clear() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    /**
+     * Get the number of requests for tiles that were found in the cache.
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return nHits.get();
+    }
+
+    /**
+     * Get the number of requests for tiles that were not found in the cache.
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return nMisses.get();
+    }
+
+    /**
+     * Get the total size of the compressed tiles currently stored in memory.
+     * @return the size in bytes
+     */
+    public long getMemoryBytes() {
+        synchronized (memoryCache) {
+            return memoryBytes;
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
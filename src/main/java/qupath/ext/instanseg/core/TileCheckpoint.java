@@ -0,0 +1,267 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only sidecar file that records the label images of completed tiles, so that an interrupted run can be
+ * resumed without repeating inference for tiles that were already finished.
+ * <p>
+ * The file is named using a hash of the image, model and processing parameters, so a checkpoint is only reused
+ * when all of these match. Each record is keyed by the parent ROI (including a hash of its coordinates, so that
+ * an edited ROI with the same bounds doesn't reuse stale tiles) and tile region.
+ * <p>
+ * Only the records read when the checkpoint is opened are held in memory, and each is dropped once it has been
+ * resumed; new records are written to disk only.
+ * Records are flushed to disk periodically; if the last record was only partially written (e.g. because the
+ * process was killed), it is discarded when the checkpoint is next opened.
+ * <p>
+ * Checkpoints should be deleted once processing has completed successfully.
+ */
+class TileCheckpoint implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileCheckpoint.class);
+
+    private static final String EXTENSION = ".instanseg-checkpoint";
+    private static final int MAGIC = 0x49534350; // 'ISCP'
+
+    private static final long FLUSH_INTERVAL_MILLIS = 10_000;
+
+    private final Path path;
+    // Records from a previous run that haven't yet been resumed
+    private final Map<String, byte[]> completed;
+    // Cache the part of the key for each parent ROI, since hashing the coordinates may be expensive
+    private final Map<ROI, String> roiKeys = Collections.synchronizedMap(new WeakHashMap<>());
+    private final FileChannel channel;
+    private final DataOutputStream output;
+    private long lastFlush = System.currentTimeMillis();
+    private boolean isClosed = false;
+
+    private TileCheckpoint(Path path, Map<String, byte[]> completed, FileChannel channel) {
+        this.path = path;
+        this.completed = completed;
+        this.channel = channel;
+        this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+    }
+
+    /**
+     * Open a checkpoint, reading any tiles that were completed previously.
+     * @param directory the directory containing checkpoint files
+     * @param key a string identifying the image, model and processing parameters
+     * @return the checkpoint
+     * @throws IOException if the checkpoint file can't be created or opened
+     */
+    static TileCheckpoint open(Path directory, String key) throws IOException {
+        Files.createDirectories(directory);
+        var path = directory.resolve(hash(key) + EXTENSION);
+        Map<String, byte[]> completed = new ConcurrentHashMap<>();
+        long validLength = 0;
+        if (Files.isRegularFile(path)) {
+            validLength = readRecords(path, completed);
+            if (!completed.isEmpty())
+                logger.info("Resuming from checkpoint with {} completed tiles: {}", completed.size(), path);
+        }
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        try {
+            if (validLength == 0) {
+                channel.truncate(0);
+                var header = ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip();
+                while (header.hasRemaining())
+                    channel.write(header);
+            } else {
+                // Discard any partially-written record, so that new records can be appended cleanly
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new TileCheckpoint(path, completed, channel);
+    }
+
+    /**
+     * Read all complete records from a checkpoint file.
+     * @return the number of bytes that were read successfully
+     */
+    private static long readRecords(Path path, Map<String, byte[]> completed) {
+        long validLength = 0;
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC) {
+                logger.warn("Ignoring invalid checkpoint file {}", path);
+                return 0;
+            }
+            validLength = Integer.BYTES;
+            while (true) {
+                int keyLength = input.readInt();
+                byte[] keyBytes = new byte[keyLength];
+                input.readFully(keyBytes);
+                int dataLength = input.readInt();
+                byte[] data = new byte[dataLength];
+                input.readFully(data);
+                completed.put(new String(keyBytes, StandardCharsets.UTF_8), data);
+                validLength += 2L * Integer.BYTES + keyLength + dataLength;
+            }
+        } catch (EOFException e) {
+            logger.debug("Finished reading checkpoint {} ({} bytes)", path, validLength);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read all of checkpoint {} - will resume from the last valid tile", path, e);
+        }
+        return validLength;
+    }
+
+    /**
+     * Get the label image for a tile, if it was completed by a previous run.
+     * The record is removed from memory, so each tile can only be resumed once.
+     * @param parent the ROI of the parent object
+     * @param request the tile region
+     * @return the label image, or null if the tile hasn't been completed
+     */
+    Mat get(ROI parent, RegionRequest request) {
+        var data = completed.remove(createKey(parent, request));
+        if (data == null)
+            return null;
+        try {
+            return LabelMatCodec.read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException e) {
+            logger.warn("Unable to read tile {} from checkpoint", request, e);
+            return null;
+        }
+    }
+
+    /**
+     * Record the label image for a completed tile.
+     * @param parent the ROI of the parent object
+     * @param request the tile region
+     * @param labels the label image output by the model
+     */
+    void put(ROI parent, RegionRequest request, Mat labels) {
+        String key = createKey(parent, request);
+        try {
+            var bytes = new ByteArrayOutputStream();
+            LabelMatCodec.write(labels, new DataOutputStream(bytes));
+            byte[] data = bytes.toByteArray();
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                if (isClosed)
+                    return;
+                output.writeInt(keyBytes.length);
+                output.write(keyBytes);
+                output.writeInt(data.length);
+                output.write(data);
+                long now = System.currentTimeMillis();
+                if (now - lastFlush > FLUSH_INTERVAL_MILLIS) {
+                    flush();
+                    lastFlush = now;
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write tile {} to checkpoint", request, e);
+        }
+    }
+
+    /**
+     * Get the number of tiles completed by a previous run that have not yet been resumed.
+     * @return the number of tiles
+     */
+    int size() {
+        return completed.size();
+    }
+
+    private void flush() throws IOException {
+        output.flush();
+        channel.force(false);
+    }
+
+    /**
+     * Close the checkpoint, flushing any pending records so that processing can be resumed later.
+     */
+    @Override
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.warn("Unable to flush checkpoint {}", path, e);
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close checkpoint {}", path, e);
+        }
+    }
+
+    /**
+     * Close and delete the checkpoint, because processing has completed successfully.
+     */
+    synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Unable to delete checkpoint {}", path, e);
+        }
+    }
+
+    private String createKey(ROI parent, RegionRequest request) {
+        return roiKeys.computeIfAbsent(parent, TileCheckpoint::createRoiKey) + ":" + request;
+    }
+
+    private static String createRoiKey(ROI roi) {
+        var digest = createDigest();
+        var buffer = ByteBuffer.allocate(2 * Double.BYTES);
+        for (var point : roi.getAllPoints()) {
+            buffer.clear();
+            buffer.putDouble(point.getX()).putDouble(point.getY()).flip();
+            digest.update(buffer);
+        }
+        return String.format(Locale.ROOT, "%s[%.3f,%.3f,%.3f,%.3f,%d,%d,%s]",
+                roi.getRoiName(),
+                roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(),
+                roi.getZ(), roi.getT(),
+                HexFormat.of().formatHex(digest.digest()));
+    }
+
+    private static String hash(String key) {
+        return HexFormat.of().formatHex(createDigest().digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,7 +1,5 @@
 package qupath.ext.instanseg.core;
 
-import ai.djl.inference.Predictor;
-import ai.djl.translate.TranslateException;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.slf4j.Logger;
@@ -13,8 +11,10 @@ import qupath.lib.experimental.pixels.Processor;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ColorTransforms;
 import qupath.lib.images.servers.PixelType;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.Padding;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.opencv.ops.ImageOp;
 import qupath.opencv.ops.ImageOps;
@@ -22,12 +22,18 @@ import qupath.opencv.tools.OpenCVTools;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -36,20 +42,42 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
 
     private static final Logger logger = LoggerFactory.getLogger(TilePredictionProcessor.class);
 
-    private final BlockingQueue<Predictor<Mat, Mat>> predictors;
+    private final BlockingQueue<TilePredictor> predictors;
 
     private final int inputWidth;
     private final int inputHeight;
     private final boolean doPadding;
+    private final ShapeBuckets shapeBuckets;
     private final Collection<ColorTransforms.ColorTransform> channels;
+    private final TileCheckpoint checkpoint;
+    private final TileCache tileCache;
+    private final String cacheKeyPrefix;
+    private final double emptyTileThreshold;
+    private final double cascadeFactor;
 
-    private final double lowPercentile = 0.1;
-    private final double highPercentile = 99.9;
+    private static final double DEFAULT_DENSITY_THRESHOLD = 0.02;
+    // Maximum width or height of a density mask - which only needs to be detailed enough to skip empty tiles
+    private static final int MAX_DENSITY_MASK_SIZE = 1024;
+
+    static final double LOW_PERCENTILE = 0.1;
+    static final double HIGH_PERCENTILE = 99.9;
 
     private final AtomicLong nPixelsProcessed = new AtomicLong(0);
     private final AtomicInteger nTilesProcessed = new AtomicInteger(0);
     private final AtomicInteger nTilesFailed = new AtomicInteger(0);
+    private final AtomicInteger nTilesResumed = new AtomicInteger(0);
+    private final AtomicInteger nTilesCached = new AtomicInteger(0);
+    private final AtomicInteger nTilesSkipped = new AtomicInteger(0);
+    private final Map<String, AtomicInteger> nTilesPerDevice = new ConcurrentHashMap<>();
+    private final AtomicLong peakTileNativeBytes = new AtomicLong(-1);
+    private final AtomicInteger nPredictorsRecycled = new AtomicInteger(0);
+    private final Set<TilePredictor> usedPredictors = ConcurrentHashMap.newKeySet();
+    private final AtomicLong firstTileNanos = new AtomicLong(0);
+    private final AtomicInteger nFirstTiles = new AtomicInteger(0);
+    private final AtomicLong steadyStateNanos = new AtomicLong(0);
+    private final AtomicInteger nSteadyStateTiles = new AtomicInteger(0);
     private final AtomicBoolean wasInterrupted = new AtomicBoolean(false);
+    private final StageTimes stageTimes = new StageTimes();
 
     /**
      * Cache normalization op so it doesn't need to be recalculated for every tile.
@@ -57,16 +85,64 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
      * the exact same ROI.
      * It may be possible to break this rule, but you'd really have to try hard.
      */
-    private final Map<ROI, ImageOp> normalization = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<ROI, Normalization> normalization = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Normalization computed from the whole image for each plane, used instead of the normalization for each ROI
+     * when tiles are cached - so that the cached tiles remain valid if the ROI changes.
+     */
+    private final Map<ImagePlane, Normalization> imageNormalization = new ConcurrentHashMap<>();
 
-    TilePredictionProcessor(BlockingQueue<Predictor<Mat, Mat>> predictors,
+    /**
+     * Cache low-resolution density masks, if using a coarse-to-fine cascade.
+     * As with the normalization, this assumes the processor is used for only one image.
+     */
+    private final Map<ROI, Optional<DensityMask>> densityMasks = Collections.synchronizedMap(new WeakHashMap<>());
+
+    TilePredictionProcessor(BlockingQueue<TilePredictor> predictors,
                             Collection<? extends ColorTransforms.ColorTransform> channels,
                             int inputWidth, int inputHeight, boolean doPadding) {
+        this(predictors, channels, inputWidth, inputHeight, doPadding, null, null, null, null, -1, -1);
+    }
+
+    /**
+     * Create a processor that can optionally pad tiles to a limited set of shapes, skip empty tiles, and reuse the
+     * outputs of tiles that were processed previously.
+     * @param shapeBuckets optional set of shapes to pad tiles to; ignored if doPadding is true
+     * @param checkpoint optional checkpoint for the current image, used to resume interrupted runs
+     * @param tileCache optional cache of tile outputs; if used, normalization is computed from the whole image
+     * @param cacheKeyPrefix string identifying the model and any other settings that influence the outputs,
+     *                       used as part of the key for the tile cache
+     * @param emptyTileThreshold tiles are skipped if the standard deviation of every normalized channel is below
+     *                           this value; use a value &lt;= 0 to process all tiles
+     * @param cascadeFactor if &gt; 1, compute a density mask for each parent at this multiple of the tile downsample,
+     *                      and skip tiles that don't overlap it
+     */
+    TilePredictionProcessor(BlockingQueue<TilePredictor> predictors,
+                            Collection<? extends ColorTransforms.ColorTransform> channels,
+                            int inputWidth, int inputHeight, boolean doPadding, ShapeBuckets shapeBuckets,
+                            TileCheckpoint checkpoint, TileCache tileCache, String cacheKeyPrefix,
+                            double emptyTileThreshold, double cascadeFactor) {
         this.predictors = predictors;
+        this.checkpoint = checkpoint;
+        this.tileCache = cacheKeyPrefix == null ? null : tileCache;
+        this.cacheKeyPrefix = cacheKeyPrefix;
+        this.emptyTileThreshold = emptyTileThreshold;
+        this.cascadeFactor = cascadeFactor;
         this.channels = List.copyOf(channels);
         this.inputWidth = inputWidth;
         this.inputHeight = inputHeight;
         this.doPadding = doPadding;
+        this.shapeBuckets = shapeBuckets;
+    }
+
+    /**
+     * Get the time spent in each stage of tile processing.
+     * Other stages (e.g. conversion and merging) can be added by the caller.
+     * @return the stage times
+     */
+    StageTimes getStageTimes() {
+        return stageTimes;
     }
 
     /**
@@ -85,6 +161,81 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
         return nTilesFailed.get();
     }
 
+    /**
+     * Get the number of tiles that were restored from a checkpoint, rather than processed again.
+     * These are also included in the count of processed tiles.
+     * @return the number of tiles that were resumed
+     */
+    public int getTilesResumedCount() {
+        return nTilesResumed.get();
+    }
+
+    /**
+     * Get the number of tiles that were found in the tile cache, rather than processed again.
+     * These are also included in the count of processed tiles.
+     * @return the number of cached tiles
+     */
+    public int getTilesCachedCount() {
+        return nTilesCached.get();
+    }
+
+    /**
+     * Get the number of tiles that were skipped because they appeared to be empty.
+     * These are also included in the count of processed tiles.
+     * @return the number of skipped tiles
+     */
+    public int getTilesSkippedCount() {
+        return nTilesSkipped.get();
+    }
+
+    /**
+     * Get the number of tiles that were successfully inferred by each device.
+     * @return a map from device name to number of tiles
+     */
+    public Map<String, Integer> getTilesPerDeviceCount() {
+        Map<String, Integer> counts = new TreeMap<>();
+        nTilesPerDevice.forEach((k, v) -> counts.put(k, v.get()));
+        return counts;
+    }
+
+    /**
+     * Get the largest native memory allocated for tensors for a single tile, if known.
+     * @return the number of bytes, or -1 if unknown
+     */
+    public long getPeakTileNativeMemoryBytes() {
+        return peakTileNativeBytes.get();
+    }
+
+    /**
+     * Get the number of times a predictor was recycled while processing tiles, to release native memory.
+     * @return the number of times predictors were recycled
+     */
+    public int getPredictorsRecycledCount() {
+        return nPredictorsRecycled.get();
+    }
+
+    /**
+     * Get the mean time taken to infer the first tile with each predictor.
+     * This is often much longer than for later tiles, unless the predictors were warmed up.
+     * @return the mean time in milliseconds, or NaN if no tiles were inferred
+     */
+    public double getFirstTileMillis() {
+        return meanMillis(firstTileNanos, nFirstTiles);
+    }
+
+    /**
+     * Get the mean time taken to infer tiles after the first for each predictor.
+     * @return the mean time in milliseconds, or NaN if no such tiles were inferred
+     */
+    public double getSteadyStateTileMillis() {
+        return meanMillis(steadyStateNanos, nSteadyStateTiles);
+    }
+
+    private static double meanMillis(AtomicLong nanos, AtomicInteger count) {
+        int n = count.get();
+        return n == 0 ? Double.NaN : nanos.get() / 1e6 / n;
+    }
+
     /**
      * Get the number of pixels that were processed.
      * This is calculated by summing the width x height of each tile that was processed.
@@ -110,37 +261,133 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
     @Override
     public Mat process(Parameters<Mat, Mat> params) throws IOException {
 
-        var mat = params.getImage();
+        // Check if the tile was completed by a previous (interrupted) run - if so, we don't even need to read it
+        var parentROI = params.getParent() == null ? null : params.getParent().getROI();
+        if (checkpoint != null && parentROI != null) {
+            var completed = checkpoint.get(parentROI, params.getRegionRequest());
+            if (completed != null) {
+                nTilesResumed.incrementAndGet();
+                tileProcessed();
+                return completed;
+            }
+        }
 
         var imageData = params.getImageData();
+        var request = params.getRegionRequest();
+        int tileWidth = (int)Math.round(request.getWidth() / request.getDownsample());
+        int tileHeight = (int)Math.round(request.getHeight() / request.getDownsample());
 
         // Normalize using percentiles (from a sufficiently low-resolution image)
-        ImageOp norm = normalization.computeIfAbsent(params.getParent().getROI(),
-                roi -> getNormalization(imageData, roi, channels, lowPercentile, highPercentile));
+        long startNormalize = StageTimes.start();
+        Normalization norm = tileCache == null ?
+                normalization.computeIfAbsent(params.getParent().getROI(), roi -> computeNormalization(imageData, roi)) :
+                imageNormalization.computeIfAbsent(params.getParent().getROI().getImagePlane(),
+                        plane -> computeNormalization(imageData, ROIs.createRectangleROI(
+                                0, 0, imageData.getServer().getWidth(), imageData.getServer().getHeight(), plane)));
+        stageTimes.record(StageTimes.NORMALIZE, startNormalize);
+
+        // Skip tiles that don't overlap any dense areas found at low resolution - this means we don't need to read them
+        if (cascadeFactor > 1 && parentROI != null) {
+            var densityMask = densityMasks.computeIfAbsent(parentROI,
+                    roi -> computeDensityMask(imageData, roi, norm, params.getRegionRequest().getDownsample()));
+            if (densityMask.isPresent() && !densityMask.get().intersects(params.getRegionRequest())) {
+                logger.debug("Skipping tile outside density mask {}", params.getRegionRequest());
+                tileSkipped();
+                return null;
+            }
+        }
+
+        // Check if we've seen the same tile before with the same normalization
+        String cacheKey = null;
+        if (tileCache != null) {
+            cacheKey = createCacheKey(params.getRegionRequest(), norm);
+            var cached = tileCache.get(cacheKey);
+            if (cached != null) {
+                nTilesCached.incrementAndGet();
+                tileProcessed();
+                if (checkpoint != null && parentROI != null)
+                    checkpoint.put(parentROI, params.getRegionRequest(), cached);
+                return cached;
+            }
+        }
+
+        long startRead = StageTimes.start();
+        var readEvent = new InstanSegEvents.ReadTile();
+        readEvent.begin();
+        var mat = params.getImage();
+        readEvent.finish(request, tileWidth, tileHeight);
+        stageTimes.record(StageTimes.READ, startRead);
 
         // Number of pixels in the Mat *excluding channels*
         long nPixels = mat.total();
 
-        var preprocessing = ImageOps.Core.sequential(
-                ImageOps.Core.ensureType(PixelType.FLOAT32),
-                norm,
-                ImageOps.Core.clip(-0.5, 1.5)
-        );
-        mat = preprocessing.apply(mat);
+        startNormalize = StageTimes.start();
+        var normalizeEvent = new InstanSegEvents.Normalize();
+        normalizeEvent.begin();
+        mat = preprocess(mat, norm);
+        normalizeEvent.finish(request, tileWidth, tileHeight);
+        stageTimes.record(StageTimes.NORMALIZE, startNormalize);
+
+        // Skip tiles that can't contain any objects (e.g. background or glass within a loosely-drawn annotation)
+        if (isEmptyTile(mat, norm)) {
+            logger.debug("Skipping empty tile {}", params.getRegionRequest());
+            tileSkipped();
+            return null;
+        }
 
         Padding padding = null;
-        if (doPadding && inputHeight > 0 && inputWidth > 0 && (mat.rows() < inputHeight || mat.cols() < inputWidth)) {
-            padding = Padding.getPadding(0, Math.max(0, inputWidth - mat.cols()), 0, Math.max(0, inputHeight - mat.rows()));
+        int targetWidth = mat.cols();
+        int targetHeight = mat.rows();
+        if (doPadding && inputHeight > 0 && inputWidth > 0) {
+            targetWidth = Math.max(targetWidth, inputWidth);
+            targetHeight = Math.max(targetHeight, inputHeight);
+        } else if (shapeBuckets != null) {
+            targetWidth = shapeBuckets.getWidth(targetWidth);
+            targetHeight = shapeBuckets.getHeight(targetHeight);
+        }
+        if (mat.rows() < targetHeight || mat.cols() < targetWidth) {
+            padding = Padding.getPadding(0, Math.max(0, targetWidth - mat.cols()), 0, Math.max(0, targetHeight - mat.rows()));
             var mat2 = new Mat();
             opencv_core.copyMakeBorder(mat, mat2, padding.getY1(), padding.getY2(), padding.getX1(), padding.getX2(), opencv_core.BORDER_REFLECT101);
             mat = mat2;
         }
 
-        Predictor<Mat, Mat> predictor = null;
+        TilePredictor predictor = null;
+        int recycleCount = 0;
+        long startPredict = 0;
+        boolean isPredicting = false;
+        boolean predicted = false;
         try {
-            predictor = predictors.take();
+            long startWait = StageTimes.start();
+            var waitEvent = new InstanSegEvents.WaitForPredictor();
+            waitEvent.availablePredictors = predictors.size();
+            waitEvent.begin();
+            InstanSegMetrics.waitStarted();
+            try {
+                predictor = predictors.take();
+            } finally {
+                InstanSegMetrics.waitFinished(startWait);
+            }
+            waitEvent.finish(request, mat.cols(), mat.rows());
+            stageTimes.record(StageTimes.WAIT_FOR_PREDICTOR, startWait);
             logger.debug("Predicting tile {}", mat);
+            recycleCount = predictor.getRecycleCount();
+            startPredict = StageTimes.start();
+            InstanSegMetrics.predictStarted();
+            isPredicting = true;
+            var predictEvent = new InstanSegEvents.Predict();
+            predictEvent.device = predictor.getDeviceName();
+            predictEvent.begin();
             var matOutput = predictor.predict(mat);
+            long predictNanos = System.nanoTime() - startPredict;
+            if (usedPredictors.add(predictor)) {
+                firstTileNanos.addAndGet(predictNanos);
+                nFirstTiles.incrementAndGet();
+            } else {
+                steadyStateNanos.addAndGet(predictNanos);
+                nSteadyStateTiles.incrementAndGet();
+            }
+            peakTileNativeBytes.accumulateAndGet(predictor.getTileNativeMemoryBytes(), Math::max);
 
             // These are useful for spotting issues with the model
             if (System.getProperty("instanseg.debug.predictions", "false").equalsIgnoreCase("true")) {
@@ -148,32 +395,135 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
                 OpenCVTools.matToImagePlus("Output " + params.getRegionRequest(), matOutput).show();
             }
 
+            nTilesPerDevice.computeIfAbsent(predictor.getDeviceName(), k -> new AtomicInteger()).incrementAndGet();
+
             matOutput.convertTo(matOutput, opencv_core.CV_32S);
+            predictEvent.finish(request, mat.cols(), mat.rows());
+            stageTimes.record(StageTimes.PREDICT, startPredict);
+            predicted = true;
             if (padding != null)
                 matOutput = OpenCVTools.crop(matOutput, padding);
+            if (checkpoint != null && parentROI != null)
+                checkpoint.put(parentROI, params.getRegionRequest(), matOutput);
+            if (cacheKey != null)
+                tileCache.put(cacheKey, matOutput);
             return matOutput;
-        } catch (TranslateException e) {
-            nTilesFailed.incrementAndGet();
+        } catch (IOException e) {
+            tileFailed();
             logger.error("Error in prediction", e);
         } catch (InterruptedException | IllegalStateException e) {
             // illegal state exception comes when ndmanager is closed from another thread (I think)
-            nTilesFailed.incrementAndGet();
+            tileFailed();
             wasInterrupted.set(true);
             logger.debug("Prediction interrupted", e);
         } finally {
+            if (isPredicting)
+                InstanSegMetrics.predictFinished(startPredict, predicted);
             if (predictor != null) {
+                int nRecycled = isPredicting ? predictor.getRecycleCount() - recycleCount : 0;
+                if (nRecycled > 0) {
+                    nPredictorsRecycled.addAndGet(nRecycled);
+                    InstanSegMetrics.PREDICTORS_RECYCLED.increment(nRecycled);
+                }
                 try {
                     predictors.put(predictor);
                 } catch (InterruptedException e) {
                     logger.warn("Tiling interrupted");
                 }
             }
-            nTilesProcessed.incrementAndGet();
+            tileProcessed();
             nPixelsProcessed.addAndGet(nPixels);
+            InstanSegMetrics.PIXELS.increment(nPixels);
         }
         return null;
     }
 
+    private void tileProcessed() {
+        nTilesProcessed.incrementAndGet();
+        InstanSegMetrics.TILES.increment();
+    }
+
+    private void tileSkipped() {
+        nTilesSkipped.incrementAndGet();
+        InstanSegMetrics.TILES_SKIPPED.increment();
+        tileProcessed();
+    }
+
+    private void tileFailed() {
+        nTilesFailed.incrementAndGet();
+        InstanSegMetrics.TILES_FAILED.increment();
+    }
+
+    private Normalization computeNormalization(ImageData<BufferedImage> imageData, ROI roi) {
+        var event = new InstanSegEvents.ComputeNormalization();
+        event.begin();
+        var norm = getNormalization(imageData, roi, channels, LOW_PERCENTILE, HIGH_PERCENTILE);
+        event.end();
+        if (event.shouldCommit()) {
+            event.region = String.format(Locale.ROOT, "x=%.0f, y=%.0f, w=%.0f, h=%.0f",
+                    roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
+            event.commit();
+        }
+        return norm;
+    }
+
+    private Optional<DensityMask> computeDensityMask(ImageData<BufferedImage> imageData, ROI roi, Normalization norm,
+                                                     double tileDownsample) {
+        try {
+            // Limit the size of the mask, in case the ROI is very large
+            double downsample = Math.max(tileDownsample * cascadeFactor,
+                    Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) / MAX_DENSITY_MASK_SIZE);
+            double threshold = emptyTileThreshold > 0 ? emptyTileThreshold : DEFAULT_DENSITY_THRESHOLD;
+            // Dilate by roughly one cell diameter at the original resolution, so that we don't lose objects at the edges
+            int dilation = (int)Math.ceil(2 * tileDownsample * cascadeFactor / downsample);
+            return Optional.of(DensityMask.compute(imageData, roi, channels, norm, downsample, threshold, dilation));
+        } catch (Exception e) {
+            logger.warn("Unable to compute density mask - all tiles will be processed", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Check if a normalized tile appears to be empty, because all channels have a very low standard deviation.
+     * This is only possible if the normalization was calculated for the whole region: percentile normalization
+     * per tile would stretch the contrast of every tile.
+     * @param mat the normalized tile
+     * @param norm the normalization that was applied
+     * @return true if the tile can be skipped, false otherwise
+     */
+    private boolean isEmptyTile(Mat mat, Normalization norm) {
+        if (emptyTileThreshold <= 0 || norm.scales() == null)
+            return false;
+        var mean = new Mat();
+        var stdDev = new Mat();
+        try {
+            opencv_core.meanStdDev(mat, mean, stdDev);
+            for (double s : OpenCVTools.extractDoubles(stdDev)) {
+                if (s >= emptyTileThreshold)
+                    return false;
+            }
+            return true;
+        } finally {
+            mean.close();
+            stdDev.close();
+        }
+    }
+
+    /**
+     * Apply the preprocessing required before inference: conversion to float, normalization and clipping.
+     * @param mat the input image
+     * @param norm the normalization to apply
+     * @return the preprocessed image
+     */
+    static Mat preprocess(Mat mat, Normalization norm) {
+        var preprocessing = ImageOps.Core.sequential(
+                ImageOps.Core.ensureType(PixelType.FLOAT32),
+                norm.toImageOp(),
+                ImageOps.Core.clip(-0.5, 1.5)
+        );
+        return preprocessing.apply(mat);
+    }
+
     /**
      * Try to fetch percentile normalisation factors from the image, using a
      * large downsample if the input pathObject is large. Uses the
@@ -189,8 +539,7 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
      * @return Percentile-based normalisation based on the bounding box,
      * or default tile-based percentile normalisation if that fails.
      */
-    private static ImageOp getNormalization(ImageData<BufferedImage> imageData, ROI roi, Collection<ColorTransforms.ColorTransform> channels, double lowPerc, double highPerc) {
-        var defaults = ImageOps.Normalize.percentile(lowPerc, highPerc, true, 1e-6);
+    static Normalization getNormalization(ImageData<BufferedImage> imageData, ROI roi, Collection<ColorTransforms.ColorTransform> channels, double lowPerc, double highPerc) {
         try {
             BufferedImage image;
             double downsample = Math.max(1,  Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) / 1024);
@@ -215,25 +564,96 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat> {
                 for (int i = 0; i < ind; i++) {
                     usePixels[i] = fpix[i];
                 }
-
-                double offset;
-                double scale;
-                var lo = MeasurementProcessor.Functions.percentile(lowPerc).apply(usePixels);
-                var hi = MeasurementProcessor.Functions.percentile(highPerc).apply(usePixels);
-                scale = 1.0 / (hi - lo + eps);
-                offset = -lo * scale;
-                return new double[]{offset, scale};
+                return computeOffsetAndScale(usePixels, lowPerc, highPerc, eps);
             }).toList();
 
-            return ImageOps.Core.sequential(
-                    ImageOps.Core.multiply(params.stream().mapToDouble(e -> e[1]).toArray()),
-                    ImageOps.Core.add(params.stream().mapToDouble(e -> e[0]).toArray())
-            );
+            return new Normalization(
+                    params.stream().mapToDouble(e -> e[0]).toArray(),
+                    params.stream().mapToDouble(e -> e[1]).toArray(),
+                    lowPerc, highPerc);
 
         } catch (Exception e) {
             logger.error("Error reading thumbnail", e);
         }
-        return defaults;
+        return new Normalization(null, null, lowPerc, highPerc);
+    }
+
+    /**
+     * Compute percentile normalisation factors from the pixels of a tile that fall inside a ROI.
+     * This avoids reading a separate thumbnail, and is intended for regions that fit inside a single tile -
+     * in which case it should be very similar to {@link #getNormalization(ImageData, ROI, Collection, double, double)}.
+     *
+     * @param mat the tile, with one channel per input channel
+     * @param roi the ROI defining the region used for normalization
+     * @param request the region request used to read the tile
+     * @return percentile-based normalisation for the ROI, or per-tile normalisation if the ROI contains no pixels
+     */
+    static Normalization getNormalization(Mat mat, ROI roi, RegionRequest request) {
+        var mask = BufferedImageTools.createROIMask(mat.cols(), mat.rows(), roi, request);
+        float[] maskPix = ColorTransforms.createChannelExtractor(0).extractChannel(null, mask, null);
+        var channels = OpenCVTools.splitChannels(mat);
+        double[] offsets = new double[channels.size()];
+        double[] scales = new double[channels.size()];
+        for (int c = 0; c < channels.size(); c++) {
+            double[] pixels = OpenCVTools.extractDoubles(channels.get(c));
+            int ind = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                if (maskPix[i] == 255)
+                    pixels[ind++] = pixels[i];
+            }
+            if (ind == 0)
+                return new Normalization(null, null, LOW_PERCENTILE, HIGH_PERCENTILE);
+            var params = computeOffsetAndScale(Arrays.copyOf(pixels, ind), LOW_PERCENTILE, HIGH_PERCENTILE, 1e-6);
+            offsets[c] = params[0];
+            scales[c] = params[1];
+        }
+        return new Normalization(offsets, scales, LOW_PERCENTILE, HIGH_PERCENTILE);
+    }
+
+    private static double[] computeOffsetAndScale(double[] pixels, double lowPerc, double highPerc, double eps) {
+        var lo = MeasurementProcessor.Functions.percentile(lowPerc).apply(pixels);
+        var hi = MeasurementProcessor.Functions.percentile(highPerc).apply(pixels);
+        double scale = 1.0 / (hi - lo + eps);
+        double offset = -lo * scale;
+        return new double[]{offset, scale};
+    }
+
+    private String createCacheKey(RegionRequest request, Normalization norm) {
+        return cacheKeyPrefix + "|" +
+                request.getPath() + "|" +
+                request + "|" +
+                channels.stream().map(ColorTransforms.ColorTransform::getName).toList() + "|" +
+                norm + "|" +
+                inputWidth + "x" + inputHeight + (doPadding ? "-padded" : "") +
+                (shapeBuckets == null || doPadding ? "" : "|" + shapeBuckets);
+    }
+
+    /**
+     * Normalization parameters for a region.
+     * If the offsets and scales are null, percentile normalization is applied to each tile independently.
+     * @param offsets the offset for each channel, applied after scaling
+     * @param scales the scale for each channel
+     * @param lowPerc the lower percentile, used if offsets and scales are null
+     * @param highPerc the upper percentile, used if offsets and scales are null
+     */
+    record Normalization(double[] offsets, double[] scales, double lowPerc, double highPerc) {
+
+        ImageOp toImageOp() {
+            if (offsets == null || scales == null)
+                return ImageOps.Normalize.percentile(lowPerc, highPerc, true, 1e-6);
+            return ImageOps.Core.sequential(
+                    ImageOps.Core.multiply(scales),
+                    ImageOps.Core.add(offsets)
+            );
+        }
+
+        @Override
+        public String toString() {
+            if (offsets == null || scales == null)
+                return "percentile[" + lowPerc + ", " + highPerc + "]";
+            return "offsets=" + Arrays.toString(offsets) + ", scales=" + Arrays.toString(scales);
+        }
+
     }
 
 
@@ -0,0 +1,61 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+
+/**
+ * A predictor that can run inference for one tile at a time.
+ * <p>
+ * Predictors are created by an {@link InferenceBackend}. Each predictor is used by only one thread at a time,
+ * but different predictors may be used concurrently.
+ */
+public interface TilePredictor extends AutoCloseable {
+
+    /**
+     * Run inference for a single tile.
+     * @param input the preprocessed tile, with one channel per input channel of the model
+     * @return the output labels, with one channel per output channel
+     * @throws IOException if inference fails for this tile
+     * @throws InterruptedException if inference was interrupted
+     */
+    Mat predict(Mat input) throws IOException, InterruptedException;
+
+    /**
+     * Get the name of the device used by this predictor.
+     * This is used to report how many tiles each device processed.
+     * @return the device name
+     */
+    String getDeviceName();
+
+    /**
+     * Get the native memory allocated for tensors while processing the most recent tile, if known.
+     * @return the number of bytes, or -1 if unknown (the default)
+     */
+    default long getTileNativeMemoryBytes() {
+        return -1;
+    }
+
+    /**
+     * Get the largest native memory allocated for tensors by this predictor at any one time, if known.
+     * @return the number of bytes, or -1 if unknown (the default)
+     */
+    default long getPeakNativeMemoryBytes() {
+        return -1;
+    }
+
+    /**
+     * Get the number of times this predictor has been recycled to release native memory.
+     * @return the number of times the predictor was recycled (by default, 0)
+     */
+    default int getRecycleCount() {
+        return 0;
+    }
+
+    /**
+     * Release any resources held by this predictor.
+     */
+    @Override
+    void close();
+
+}
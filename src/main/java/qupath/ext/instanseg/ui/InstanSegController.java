@@ -1,6 +1,7 @@
 package qupath.ext.instanseg.ui;
 
 import com.google.gson.Gson;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
@@ -28,6 +29,7 @@ import javafx.scene.control.Tooltip;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.web.WebView;
+import javafx.util.Duration;
 import org.commonmark.renderer.html.HtmlRenderer;
 import org.controlsfx.control.CheckComboBox;
 import org.controlsfx.control.PopOver;
@@ -127,6 +129,8 @@ public class InstanSegController extends BorderPane {
     private final QuPathGUI qupath;
     private final ObjectProperty<FutureTask<?>> pendingTask = new SimpleObjectProperty<>();
     private final MessageTextHelper messageTextHelper;
+    // Wait briefly before preloading, since several settings often change together (e.g. when switching models)
+    private final PauseTransition preloadDelay = new PauseTransition(Duration.millis(500));
 
     private final BooleanProperty needsUpdating = new SimpleBooleanProperty();
 
@@ -197,6 +201,9 @@ public class InstanSegController extends BorderPane {
         configureInputChannelCombo();
         configureOutputChannelCombo();
         configureDefaultValues();
+
+        // Background loading
+        configurePreloading();
     }
 
     private void refreshAvailableModels() {
@@ -211,11 +218,14 @@ public class InstanSegController extends BorderPane {
         // Need to use a loop and not a stream to avoid exceptions if there are duplicate names
         Map<String, InstanSegModel> localModelNames = new TreeMap<>();
         for (var model : localModels) {
-            if (localModelNames.put(model.getName(), model) != null) {
-                logger.warn("Duplicate model names aren't allowed! Dropping {}", model.getName());
+            if (localModelNames.put(getNameAndVersion(model), model) != null) {
+                logger.warn("Duplicate model names aren't allowed! Dropping {}", getNameAndVersion(model));
             }
         }
+        // Downloaded models are discovered locally, so we don't need to list them again as remote models -
+        // but a local model with the same name doesn't replace a remote model with a different version
         var remoteAndNotLocal = remoteModels.stream()
+                .filter(m -> !localModelNames.containsKey(getNameAndVersion(m)))
                 .sorted(comparator)
                 .toList();
         list.addAll(localModels);
@@ -237,6 +247,11 @@ public class InstanSegController extends BorderPane {
         }
     }
 
+    private static String getNameAndVersion(InstanSegModel model) {
+        var version = model.getVersion();
+        return version == null ? model.getName() : model.getName() + "-" + version;
+    }
+
     private void configureModelChoices() {
         selectedModel.bind(modelChoiceBox.getSelectionModel().selectedItemProperty());
         selectedModel.addListener((v, o, n) -> refreshModelChoice());
@@ -286,6 +301,42 @@ public class InstanSegController extends BorderPane {
         randomColorsCheckBox.selectedProperty().bindBidirectional(InstanSegPreferences.randomColorsProperty());
     }
 
+    private void configurePreloading() {
+        preloadDelay.setOnFinished(e -> preloadSelectedModel());
+        selectedModel.addListener((v, o, n) -> requestPreload());
+        needsUpdating.addListener((v, o, n) -> requestPreload());
+        deviceChoices.getSelectionModel().selectedItemProperty().addListener((v, o, n) -> requestPreload());
+        comboOutputChannels.getCheckModel().getCheckedItems().addListener(
+                (ListChangeListener<OutputChannelItem>) c -> requestPreload());
+        InstanSegPreferences.preloadModelProperty().addListener((v, o, n) -> requestPreload());
+    }
+
+    /**
+     * Request that the selected model is loaded in the background, after a short delay.
+     * This does nothing if preloading is turned off, or the model or device is unavailable.
+     */
+    void requestPreload() {
+        preloadDelay.playFromStart();
+    }
+
+    private void preloadSelectedModel() {
+        var preloader = SessionPreloader.getInstance();
+        if (!InstanSegPreferences.preloadModelProperty().get()) {
+            preloader.clear();
+            return;
+        }
+        var model = selectedModel.get();
+        var device = deviceChoices.getSelectionModel().getSelectedItem();
+        // Don't trigger downloading the model or PyTorch, since the user hasn't asked to run anything yet
+        if (model == null || device == null || !model.isValid() || !PytorchManager.hasPyTorchEngine())
+            return;
+        int[] outputChannels = InstanSegTask.getOutputChannels(model, comboOutputChannels.getCheckModel().getCheckedIndices());
+        int nChannels = model.getNumChannels()
+                .filter(n -> n != InstanSegModel.ANY_CHANNELS)
+                .orElse(comboInputChannels.getCheckModel().getCheckedItems().size());
+        preloader.preload(model, device, outputChannels, InstanSegPreferences.tileSizeProperty().get(), nChannels);
+    }
+
     /**
      * Open the model directory in the system file browser when double-clicked.
      */
@@ -630,7 +681,8 @@ public class InstanSegController extends BorderPane {
                     InstanSegModel.fromURL(
                             remoteModel.getName(),
                             remoteModel.getVersion(),
-                            remoteModel.getUrl()
+                            remoteModel.getUrl(),
+                            remoteModel.getSha256()
                     )
             );
         }
@@ -10,9 +10,11 @@ import javafx.stage.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.fx.dialogs.Dialogs;
+import qupath.fx.prefs.annotations.BooleanPref;
 import qupath.fx.prefs.annotations.DirectoryPref;
 import qupath.fx.prefs.annotations.Pref;
 import qupath.fx.prefs.annotations.PrefCategory;
+import qupath.fx.prefs.annotations.StringPref;
 import qupath.fx.prefs.controlsfx.PropertySheetUtils;
 import qupath.fx.utils.FXUtils;
 import qupath.lib.common.Version;
@@ -77,8 +79,15 @@ public class InstanSegExtension implements QuPathExtension, GitHubProject {
 				stage.initOwner(QuPathGUI.getInstance().getStage());
 				stage.setTitle(resources.getString("title"));
 				stage.setResizable(false);
-				stage.setOnShown(e -> Watcher.getInstance().start());
-				stage.setOnHidden(e -> Watcher.getInstance().stop());
+				stage.setOnShown(e -> {
+					Watcher.getInstance().start();
+					pane.requestPreload();
+				});
+				stage.setOnHidden(e -> {
+					Watcher.getInstance().stop();
+					// Release native memory held by any preloaded model
+					SessionPreloader.getInstance().clear();
+				});
 			} catch (IOException e) {
 				Dialogs.showErrorMessage("InstanSeg", "GUI loading failed");
 				logger.error("Unable to load InstanSeg FXML", e);
@@ -131,8 +140,14 @@ public class InstanSegExtension implements QuPathExtension, GitHubProject {
 		@DirectoryPref(bundle="qupath.ext.instanseg.ui.strings", value="ui.prefs.model-directory")
 		private final StringProperty modelDirectory = InstanSegPreferences.modelDirectoryProperty();
 
+		@StringPref(bundle="qupath.ext.instanseg.ui.strings", value="ui.prefs.extra-model-directories")
+		private final StringProperty extraModelDirectories = InstanSegPreferences.extraModelDirectoriesProperty();
+
 		@Pref(bundle="qupath.ext.instanseg.ui.strings", type=InstanSegPreferences.OnlinePermission.class, value="ui.prefs.permit-online")
 		private final ObjectProperty<InstanSegPreferences.OnlinePermission> permitOnline = InstanSegPreferences.permitOnlineProperty();
+
+		@BooleanPref(bundle="qupath.ext.instanseg.ui.strings", value="ui.prefs.preload-model")
+		private final BooleanProperty preloadModel = InstanSegPreferences.preloadModelProperty();
 	}
 
 }
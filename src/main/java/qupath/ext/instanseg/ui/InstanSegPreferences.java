@@ -29,6 +29,10 @@ class InstanSegPreferences {
             "instanseg.model.dir",
             null);
 
+    private static final StringProperty extraModelDirectoriesProperty = PathPrefs.createPersistentPreference(
+            "instanseg.model.extra.dirs",
+            "");
+
     private static final StringProperty preferredDeviceProperty = PathPrefs.createPersistentPreference(
             "instanseg.pref.device",
             getDefaultDevice());
@@ -53,6 +57,10 @@ class InstanSegPreferences {
             "intanseg.random.colors",
             false);
 
+    private static final BooleanProperty preloadModelProperty = PathPrefs.createPersistentPreference(
+            "instanseg.preload.model",
+            true);
+
     /**
      * MPS should work reliably (and much faster) on Apple Silicon, so set as default.
      * Everywhere else, use CPU as we can't count on a GPU/CUDA being available.
@@ -74,6 +82,14 @@ class InstanSegPreferences {
         return modelDirectoryProperty;
     }
 
+    /**
+     * Additional directories to search (recursively) for local models, separated by the system path separator.
+     * @return
+     */
+    static StringProperty extraModelDirectoriesProperty() {
+        return extraModelDirectoriesProperty;
+    }
+
     static StringProperty preferredDeviceProperty() {
         return preferredDeviceProperty;
     }
@@ -98,4 +114,12 @@ class InstanSegPreferences {
         return randomColorsProperty;
     }
 
+    /**
+     * Load the selected model in the background, so that it is ready when InstanSeg is run.
+     * @return
+     */
+    static BooleanProperty preloadModelProperty() {
+        return preloadModelProperty;
+    }
+
 }
@@ -6,6 +6,8 @@ import org.slf4j.LoggerFactory;
 import qupath.ext.instanseg.core.InstanSeg;
 import qupath.ext.instanseg.core.InstanSegModel;
 import qupath.ext.instanseg.core.InstanSegResults;
+import qupath.ext.instanseg.core.InstanSegSession;
+import qupath.ext.instanseg.core.TileCache;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
@@ -28,6 +30,10 @@ class InstanSegTask extends Task<Void> {
 
     private static final ResourceBundle resources = InstanSegResources.getResources();
 
+    // Shared cache so that rerunning on overlapping regions doesn't need to repeat inference
+    // The size can be changed (or the cache disabled by setting it to 0) with a system property
+    private static final TileCache tileCache = createTileCache();
+
     private final ImageData<BufferedImage> imageData;
     private final List<InputChannelItem> channels;
     private final List<Integer> outputChannels;
@@ -61,20 +67,16 @@ class InstanSegTask extends Task<Void> {
             Dialogs.showErrorNotification(resources.getString("title"), resources.getString("error.querying-local"));
             return null;
         }
-        // TODO: HANDLE OUTPUT CHANNELS!
-        int nOutputs = model.getOutputChannels().orElse(1);
-        int[] outputChannels = new int[0];
-        if (nOutputs <= 0) {
-            logger.warn("Unknown output channels for {}", model);
-            nOutputs = 1;
-        }
-        int nChecked = this.outputChannels.size();
-        if (nChecked > 0 && nChecked < nOutputs) {
-            outputChannels = this.outputChannels.stream().mapToInt(Integer::intValue).toArray();
-        }
+        int[] outputChannels = getOutputChannels(model, this.outputChannels);
         int tileSize = InstanSegPreferences.tileSizeProperty().get();
         int tilePadding = InstanSegPreferences.tilePaddingProperty().get();
 
+        // Use a session that was loaded in the background, if available
+        var preloader = SessionPreloader.getInstance();
+        InstanSegSession session = preloader.acquire(model, device, outputChannels);
+        if (session != null)
+            logger.debug("Using preloaded session for {}", model);
+
         var instanSeg = InstanSeg.builder()
                 .model(model)
                 .device(device)
@@ -85,6 +87,9 @@ class InstanSegTask extends Task<Void> {
                 .taskRunner(taskRunner)
                 .makeMeasurements(makeMeasurements)
                 .randomColors(randomColors)
+                .tileCache(tileCache)
+                .warmUp(session != null)
+                .singleTileFastPath(true)
                 .build();
 
         String cmd = String.format("""
@@ -98,6 +103,7 @@ class InstanSegTask extends Task<Void> {
                                 .nThreads(%d)
                                 .makeMeasurements(%s)
                                 .randomColors(%s)
+                                .singleTileFastPath(true)
                                 .build()
                                 .detectObjects()
                             """,
@@ -113,8 +119,19 @@ class InstanSegTask extends Task<Void> {
                 makeMeasurements,
                 randomColors
         ).strip();
-        InstanSegResults results = instanSeg.detectObjects(imageData, selectedObjects);
-        imageData.getHierarchy().fireHierarchyChangedEvent(this);
+        InstanSegResults results;
+        try {
+            results = session == null ? instanSeg.detectObjects(imageData, selectedObjects) :
+                    instanSeg.detectObjects(session, imageData, selectedObjects);
+        } finally {
+            if (session != null)
+                preloader.release(session);
+        }
+        // For a single region, only notify listeners about that part of the hierarchy
+        if (selectedObjects.size() == 1)
+            imageData.getHierarchy().fireHierarchyChangedEvent(this, selectedObjects.iterator().next());
+        else
+            imageData.getHierarchy().fireHierarchyChangedEvent(this);
         imageData.getHistoryWorkflow()
                 .addStep(
                         new DefaultScriptableWorkflowStep(resources.getString("workflow.title"), cmd)
@@ -129,6 +146,37 @@ class InstanSegTask extends Task<Void> {
         return null;
     }
 
+    /**
+     * Get the output channels to pass to the InstanSeg builder.
+     * @param model the model
+     * @param checkedChannels indices of the output channels selected by the user
+     * @return the output channels, or an empty array if all channels should be used
+     */
+    static int[] getOutputChannels(InstanSegModel model, List<Integer> checkedChannels) {
+        // TODO: HANDLE OUTPUT CHANNELS!
+        int nOutputs = model.getOutputChannels().orElse(1);
+        if (nOutputs <= 0) {
+            logger.warn("Unknown output channels for {}", model);
+            nOutputs = 1;
+        }
+        int nChecked = checkedChannels.size();
+        if (nChecked > 0 && nChecked < nOutputs) {
+            return checkedChannels.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return new int[0];
+    }
+
+    private static TileCache createTileCache() {
+        try {
+            long sizeMB = Long.parseLong(System.getProperty("instanseg.tileCacheMB", "256").strip());
+            if (sizeMB > 0)
+                return TileCache.createMemoryCache(sizeMB * 1024 * 1024);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid tile cache size: {}", System.getProperty("instanseg.tileCacheMB"));
+        }
+        return null;
+    }
+
     private static String modelPathToString(Path path) {
         if (GeneralTools.isWindows())
             return path.toString().replaceAll("\\\\", "/");
@@ -0,0 +1,208 @@
+package qupath.ext.instanseg.ui;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.instanseg.core.InstanSegModel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of model directories, used to discover models recursively across one or more root directories.
+ * <p>
+ * For every directory visited, the index stores its last modified time, its subdirectories and whether it
+ * contains a model (along with the last modified time and hash of the model spec, and the last modified time of
+ * the weights).
+ * When discovering models, directories that haven't been modified since they were indexed are not listed again -
+ * only their entries are checked. A model is validated again if its spec or weights have been modified, since
+ * editing or replacing a file doesn't necessarily change the last modified time of its directory.
+ * This helps avoid walking an entire directory tree on start-up, which can be slow on network shares.
+ */
+class ModelIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelIndex.class);
+
+    /**
+     * Name of the index file, stored in the main model directory.
+     */
+    static final String INDEX_FILENAME = ".instanseg-index.json";
+
+    /**
+     * Maximum depth to search below each root directory.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final Path indexFile;
+    private final Map<String, DirectoryEntry> directories;
+    private boolean modified = false;
+
+    private ModelIndex(Path indexFile, Map<String, DirectoryEntry> directories) {
+        this.indexFile = indexFile;
+        this.directories = directories;
+    }
+
+    /**
+     * Load an index from a file, or create a new index if the file doesn't exist or can't be read.
+     * @param indexFile the index file; may be null, in which case the index is not persisted
+     * @return the index
+     */
+    static ModelIndex load(Path indexFile) {
+        Map<String, DirectoryEntry> directories = new HashMap<>();
+        if (indexFile != null && Files.isRegularFile(indexFile)) {
+            try (var reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                Map<String, DirectoryEntry> read = gson.fromJson(reader, new TypeToken<Map<String, DirectoryEntry>>(){}.getType());
+                if (read != null)
+                    directories.putAll(read);
+            } catch (IOException | JsonParseException e) {
+                logger.warn("Unable to read model index {} - will rebuild it", indexFile, e);
+            }
+        }
+        return new ModelIndex(indexFile, directories);
+    }
+
+    /**
+     * Save the index, if it has been modified since it was loaded or last saved.
+     */
+    synchronized void save() {
+        if (!modified || indexFile == null)
+            return;
+        try {
+            var tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            Files.writeString(tempFile, gson.toJson(directories), StandardCharsets.UTF_8);
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } catch (IOException e) {
+            logger.warn("Unable to write model index {}", indexFile, e);
+        }
+    }
+
+    /**
+     * Discover all models below the specified root directories, updating the index as required.
+     * @param roots the root directories
+     * @return the models that were found, and the directories that should be watched for changes
+     */
+    synchronized DiscoveryResult discover(Collection<Path> roots) {
+        Map<Path, String> models = new LinkedHashMap<>();
+        Set<Path> watchDirs = new LinkedHashSet<>();
+        Set<String> visited = new LinkedHashSet<>();
+        for (var root : roots) {
+            if (root != null && Files.isDirectory(root))
+                visit(root.toAbsolutePath().normalize(), 0, models, watchDirs, visited);
+        }
+        // Remove entries for directories that no longer exist (or are no longer below a root)
+        if (directories.keySet().retainAll(visited))
+            modified = true;
+        return new DiscoveryResult(models, watchDirs);
+    }
+
+    private void visit(Path dir, int depth, Map<Path, String> models, Set<Path> watchDirs, Set<String> visited) {
+        String key = dir.toString();
+        if (!visited.add(key))
+            return;
+        long lastModified = getLastModifiedMillis(dir);
+        var specFile = dir.resolve("rdf.yaml");
+        long specLastModified = getLastModifiedMillis(specFile);
+        long weightsLastModified = getLastModifiedMillis(dir.resolve("instanseg.pt"));
+        var entry = directories.get(key);
+        if (entry == null || entry.lastModified != lastModified || entry.weightsLastModified != weightsLastModified
+                || (entry.specHash != null && entry.specLastModified != specLastModified)) {
+            // Directory is new or has changed, so we need to list it again
+            entry = new DirectoryEntry();
+            entry.lastModified = lastModified;
+            entry.weightsLastModified = weightsLastModified;
+            // We're on a background thread, so can afford to check the weights haven't been corrupted
+            entry.model = InstanSegModel.checkModelFiles(dir);
+            entry.children = entry.model ? List.of() : listSubdirectories(dir);
+            directories.put(key, entry);
+            modified = true;
+        }
+        if (entry.model) {
+            if (entry.specHash == null || entry.specLastModified != specLastModified) {
+                entry.specLastModified = specLastModified;
+                entry.specHash = hash(specFile);
+                modified = true;
+            }
+            models.put(dir, entry.specHash);
+            return;
+        }
+        watchDirs.add(dir);
+        if (depth >= MAX_DEPTH)
+            return;
+        for (var child : entry.children) {
+            var childDir = dir.resolve(child);
+            if (Files.isDirectory(childDir))
+                visit(childDir, depth + 1, models, watchDirs, visited);
+        }
+    }
+
+    private static List<String> listSubdirectories(Path dir) {
+        try (var stream = Files.list(dir)) {
+            return stream
+                    .filter(Files::isDirectory)
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> !name.startsWith(".")) // Skip hidden directories, including blob storage
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            logger.warn("Unable to list files in directory {}", dir, e);
+            return List.of();
+        }
+    }
+
+    private static long getLastModifiedMillis(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            logger.debug("Unable to get last modified time for {}", path, e);
+            return -1;
+        }
+    }
+
+    private static String hash(Path file) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(Files.readAllBytes(file)));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.debug("Unable to hash {}", file, e);
+            return "";
+        }
+    }
+
+    /**
+     * Result of discovering models.
+     * @param models the model directories that were found, mapped to a hash of their spec
+     * @param watchDirs the (non-model) directories that should be watched for new models
+     */
+    record DiscoveryResult(Map<Path, String> models, Set<Path> watchDirs) {}
+
+    private static class DirectoryEntry {
+
+        private long lastModified;
+        private boolean model;
+        private List<String> children = List.of();
+        private long specLastModified;
+        private String specHash;
+        private long weightsLastModified;
+
+    }
+
+}
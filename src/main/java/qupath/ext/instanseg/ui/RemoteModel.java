@@ -7,12 +7,14 @@ public class RemoteModel {
     private final URL url;
     private final String version;
     private final String license;
+    private final String sha256;
 
-    RemoteModel(String name, URL url, String version, String license) {
+    RemoteModel(String name, URL url, String version, String license, String sha256) {
         this.name = name;
         this.url = url;
         this.version = version;
         this.license = license;
+        this.sha256 = sha256;
     }
 
     public String getName() {
@@ -30,4 +32,12 @@ public class RemoteModel {
     public String getLicense() {
         return license;
     }
+
+    /**
+     * Get the expected SHA-256 checksum of the zipped model.
+     * @return the checksum as a hex string, or null if this isn't included in the model index
+     */
+    public String getSha256() {
+        return sha256;
+    }
 }
@@ -0,0 +1,201 @@
+package qupath.ext.instanseg.ui;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.instanseg.core.InstanSeg;
+import qupath.ext.instanseg.core.InstanSegModel;
+import qupath.ext.instanseg.core.InstanSegSession;
+import qupath.lib.common.ThreadTools;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load an InstanSeg session in the background, so that it is ready by the time a run is requested.
+ * <p>
+ * Only one session is held at a time. Requesting a session for a different model, device or output channels
+ * cancels any preload that is still in progress and closes the previous session (once it is no longer in use).
+ * A session that is handed to a run is kept afterwards so that it can be reused by the next run.
+ */
+class SessionPreloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionPreloader.class);
+
+    private static final SessionPreloader INSTANCE = new SessionPreloader();
+
+    private final ExecutorService pool = Executors.newSingleThreadExecutor(
+            ThreadTools.createThreadFactory("instanseg-preload", true));
+
+    private Key key;
+    private CompletableFuture<InstanSegSession> future;
+    // Task used to load the current session, so that it can be cancelled
+    private Future<?> task;
+    // Sessions that have been acquired for a run and not yet released (possibly including sessions for an old key)
+    private final Set<CompletableFuture<InstanSegSession>> inUse = new HashSet<>();
+
+    private SessionPreloader() {}
+
+    static SessionPreloader getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Identifies the sessions that are interchangeable.
+     * @param modelPath path to the model directory
+     * @param device the device name
+     * @param outputChannels the output channels, or an empty list to use all
+     */
+    record Key(Path modelPath, String device, List<Integer> outputChannels) {
+
+        static Key create(InstanSegModel model, String device, int[] outputChannels) {
+            return new Key(model.getPath().orElse(null), device,
+                    outputChannels == null ? List.of() : Arrays.stream(outputChannels).boxed().toList());
+        }
+
+    }
+
+    /**
+     * Start loading a session in the background, unless one has already been requested for the same key.
+     * @param model the model, which should already have been downloaded
+     * @param device the device name
+     * @param outputChannels the output channels, or an empty array to use all
+     * @param tileSize the tile size used to warm up the model
+     * @param nChannels the number of input channels used to warm up the model, or 0 to skip warm up
+     */
+    synchronized void preload(InstanSegModel model, String device, int[] outputChannels, int tileSize, int nChannels) {
+        var newKey = Key.create(model, device, outputChannels);
+        if (newKey.modelPath() == null || newKey.equals(key))
+            return;
+        discard();
+        key = newKey;
+        logger.debug("Preloading session for {}", newKey);
+        var loading = new CompletableFuture<InstanSegSession>();
+        future = loading;
+        task = pool.submit(() -> {
+            loading.complete(load(newKey, model, device, outputChannels, tileSize, nChannels));
+        });
+    }
+
+    private InstanSegSession load(Key requestedKey, InstanSegModel model, String device, int[] outputChannels,
+                                  int tileSize, int nChannels) {
+        // Skip loading if we've been superseded while waiting in the queue
+        if (!isCurrent(requestedKey))
+            return null;
+        long startTime = System.currentTimeMillis();
+        InstanSegSession session = null;
+        try {
+            session = InstanSeg.builder()
+                    .model(model)
+                    .device(device)
+                    .outputChannels(outputChannels)
+                    .build()
+                    .openSession();
+            // Loading the model can't be interrupted, but we can avoid warming up (and holding onto) a model
+            // that is no longer needed
+            if (nChannels > 0 && isCurrent(requestedKey))
+                session.warmUp(tileSize, tileSize, nChannels);
+            if (!isCurrent(requestedKey) || Thread.currentThread().isInterrupted()) {
+                logger.debug("Preloading cancelled for {}", requestedKey);
+                session.close();
+                return null;
+            }
+            logger.info("Preloaded {} on {} in {} ms", model.getName(), device, System.currentTimeMillis() - startTime);
+            return session;
+        } catch (InterruptedException e) {
+            logger.debug("Preloading interrupted");
+            if (session != null)
+                session.close();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            // Not a problem - the model will be loaded again when a run is requested
+            logger.warn("Unable to preload {}: {}", model.getName(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+            if (session != null)
+                session.close();
+            return null;
+        }
+    }
+
+    private synchronized boolean isCurrent(Key requestedKey) {
+        return Objects.equals(key, requestedKey);
+    }
+
+    /**
+     * Request the preloaded session for a run, waiting for loading to finish if necessary.
+     * The session must be returned with {@link #release(InstanSegSession)} after the run.
+     * @param model the model
+     * @param device the device name
+     * @param outputChannels the output channels, or an empty array to use all
+     * @return the session, or null if no compatible session is available
+     */
+    InstanSegSession acquire(InstanSegModel model, String device, int[] outputChannels) {
+        CompletableFuture<InstanSegSession> requested;
+        synchronized (this) {
+            if (future == null || inUse.contains(future) || !Key.create(model, device, outputChannels).equals(key))
+                return null;
+            requested = future;
+            inUse.add(requested);
+        }
+        var session = requested.join();
+        if (session == null || session.isClosed()) {
+            synchronized (this) {
+                inUse.remove(requested);
+                // Permit another attempt with the same key
+                if (future == requested) {
+                    future = null;
+                    key = null;
+                }
+            }
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Return a session after a run.
+     * If a session has been requested for a different key in the meantime, this session is closed.
+     * @param session the session returned by {@link #acquire(InstanSegModel, String, int[])}, or null
+     */
+    synchronized void release(InstanSegSession session) {
+        if (session == null)
+            return;
+        inUse.removeIf(f -> f.getNow(null) == session);
+        if (future == null || future.getNow(null) != session)
+            session.close();
+    }
+
+    /**
+     * Close any preloaded session, releasing its native resources.
+     * A session in use is closed when it is released.
+     */
+    synchronized void clear() {
+        discard();
+        key = null;
+    }
+
+    private void discard() {
+        if (future == null)
+            return;
+        // A session in use will be closed when it is released - otherwise cancel loading, and close the session
+        // if it has already been loaded
+        if (!inUse.contains(future)) {
+            task.cancel(true);
+            future.thenAccept(session -> {
+                if (session != null)
+                    session.close();
+            });
+        }
+        future = null;
+        task = null;
+    }
+
+}
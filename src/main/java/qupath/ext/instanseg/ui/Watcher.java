@@ -1,16 +1,17 @@
 package qupath.ext.instanseg.ui;
 
-import javafx.application.Platform;
 import javafx.beans.binding.ObjectBinding;
+import javafx.beans.property.StringProperty;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.instanseg.core.InstanSegModel;
 import qupath.fx.utils.FXUtils;
+import qupath.lib.common.ThreadTools;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -18,20 +19,36 @@ import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 /**
- * Watcher to look for changes in the model directory.
+ * Watcher to look for changes in the model directories.
  * This can provide an observable list containing the available local models.
+ * <p>
+ * Models are discovered recursively below the 'local' and 'downloaded' subdirectories of the model directory,
+ * and below any additional model directories set in the preferences.
+ * A {@link ModelIndex} is used to avoid listing directories that haven't changed since the last scan.
+ * <p>
+ * File system events are debounced, and the model directories are scanned in a background thread.
+ * This is important because extracting a single model can trigger many events, and parsing model specs on the
+ * JavaFX application thread can freeze the UI when there are many models.
  */
 class Watcher {
 
@@ -44,21 +61,33 @@ class Watcher {
     // which we use to indicate directories we will want to watch as soon as the watch service is activated
     private final Map<Path, WatchKey> watchKeys = Collections.synchronizedMap(new HashMap<>());
 
-    // Store an observable list of model paths
-    private final ObservableList<Path> modelPaths = FXCollections.observableArrayList();
+    // Delay used to coalesce bursts of file system events into a single scan
+    private static final long SCAN_DELAY_MILLIS = 500;
 
-    // Store an observable list of models, which we update only when the paths change
+    private final ScheduledExecutorService scanner = Executors.newSingleThreadScheduledExecutor(
+            ThreadTools.createThreadFactory("instanseg-watcher", true));
+    private ScheduledFuture<?> pendingScan;
+
+    // Models from the last scan, with a hash of the spec - only accessed from the scanner thread
+    private final Map<Path, ScannedModel> scannedModels = new LinkedHashMap<>();
+
+    // Root directories to search for models, and the index used to search them
+    private volatile List<Path> roots = List.of();
+    private volatile ModelIndex modelIndex = ModelIndex.load(null);
+
+    // Store an observable list of models, which we update only when the scanned models change
     private final ObservableList<InstanSegModel> models = FXCollections.observableArrayList();
     private final ObservableList<InstanSegModel> modelsUnmodifiable = FXCollections.unmodifiableObservableList(models);
 
     //Binding to the directory we want to watch for models.
     private final ObjectBinding<Path> modelDirectoryBinding = InstanSegUtils.getModelDirectoryBinding();
+    private final StringProperty extraModelDirectories = InstanSegPreferences.extraModelDirectoriesProperty();
 
     private static final Watcher instance = new Watcher();
 
     private Watcher() {
         modelDirectoryBinding.addListener(this::handleModelDirectoryChange);
-        modelPaths.addListener(this::handleModelPathsChanged);
+        extraModelDirectories.addListener((v, o, n) -> handleModelDirectoryChange(modelDirectoryBinding, null, modelDirectoryBinding.get()));
         handleModelDirectoryChange(modelDirectoryBinding, null, modelDirectoryBinding.get());
     }
 
@@ -71,19 +100,45 @@ class Watcher {
     }
 
     private void handleModelDirectoryChange(ObservableValue<? extends Path> observable, Path oldPath, Path newPath) {
-        // Currently, we look *only* in the model directory for models
-        // But we could register subdirectories here if we wanted (e.g. 'local', 'downloaded')
-        if (oldPath != null) {
-            unregister(oldPath.resolve("local"));
+        List<Path> newRoots = new ArrayList<>();
+        if (newPath != null) {
+            newRoots.add(newPath.resolve("local"));
+            newRoots.add(newPath.resolve("downloaded"));
         }
-        if (newPath != null && Files.isDirectory(newPath.resolve("local"))) {
+        newRoots.addAll(parseDirectories(extraModelDirectories.get()));
+        roots = List.copyOf(newRoots);
+        if (newPath == null || !Objects.equals(oldPath, newPath)) {
+            modelIndex = ModelIndex.load(newPath == null ? null : newPath.resolve(ModelIndex.INDEX_FILENAME));
+        }
+        refreshAllModelPaths();
+    }
+
+    private static List<Path> parseDirectories(String paths) {
+        if (paths == null || paths.isBlank())
+            return List.of();
+        return Arrays.stream(paths.split(File.pathSeparator))
+                .map(String::strip)
+                .filter(p -> !p.isEmpty())
+                .map(Path::of)
+                .toList();
+    }
+
+    /**
+     * Update the directories being watched to match the specified set.
+     * @param dirs
+     */
+    private synchronized void updateWatchedDirectories(Set<Path> dirs) {
+        for (var dir : List.copyOf(watchKeys.keySet())) {
+            if (!dirs.contains(dir))
+                unregister(dir);
+        }
+        for (var dir : dirs) {
             try {
-                register(newPath.resolve("local"));
+                register(dir);
             } catch (IOException e) {
-                logger.error("Unable to register new model directory", e);
+                logger.warn("Unable to watch model directory {}", dir, e);
             }
         }
-        refreshAllModelPaths();
     }
 
     private synchronized void register(Path dir) throws IOException {
@@ -145,17 +200,9 @@ class Watcher {
                     // This means that listeners can be notified of a 'new' model before they are informed
                     // that the previous model has been deleted - and both models will have the same name,
                     // because this is read from rdf.yaml.
-                    // To reduce the risk of this causing trouble, do a full directory refresh on any change.
-                    if (kind == ENTRY_CREATE) {
-                        logger.debug("File created: {}", rawEvent);
-                        refreshAllModelPaths();
-                    }
-                    if (kind == ENTRY_DELETE) {
-                        logger.debug("File deleted: {}", rawEvent);
-                        refreshAllModelPaths();
-                    }
-                    if (kind == ENTRY_MODIFY) {
-                        logger.debug("File modified: {}", rawEvent);
+                    // To reduce the risk of this causing trouble, do a full directory refresh on any change -
+                    // but debounce this, since unzipping a single model can trigger many events.
+                    if (kind == ENTRY_CREATE || kind == ENTRY_DELETE || kind == ENTRY_MODIFY) {
                         refreshAllModelPaths();
                     }
                 }
@@ -174,21 +221,6 @@ class Watcher {
         }
     }
 
-    /**
-     * Add the model, after checking it won't be a duplicate.
-     * @param model
-     */
-    private void ensureModelInList(InstanSegModel model) {
-        for (var existingModel : models) {
-            if (existingModel.equals(model) || existingModel.getPath().equals(model.getPath())) {
-                logger.debug("Existing model found, will not add {}", model);
-                return;
-            }
-        }
-        models.add(model);
-    }
-
-
     synchronized void stop() {
         isRunning = false;
     }
@@ -217,51 +249,76 @@ class Watcher {
     }
 
     /**
-     * Refresh all models to match the directories we are watching
+     * Request that all models are refreshed to match the directories we are watching.
+     * The refresh is performed in a background thread after a short delay, and repeated requests within that
+     * delay are coalesced into a single scan.
      */
-    private void refreshAllModelPaths() {
-        Set<Path> currentPaths = new LinkedHashSet<>();
-        for (var dir : watchKeys.keySet()) {
-            currentPaths.addAll(getModelPathsInDir(dir));
+    private synchronized void refreshAllModelPaths() {
+        if (pendingScan != null) {
+            pendingScan.cancel(false);
         }
-        // We only want to update the list if it has changed, to avoid rebuilding models unnecessarily
-        if (modelPaths.size() == currentPaths.size() && currentPaths.containsAll(modelPaths))
-            return;
-        FXUtils.runOnApplicationThread(() -> modelPaths.setAll(currentPaths));
+        pendingScan = scanner.schedule(this::scanModels, SCAN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Update all models in response to a change in the model paths.
-     * @param change
+     * Scan all the directories being watched, parsing new or modified models, and publish any changes.
+     * This should only be called from the scanner thread.
      */
-    private void handleModelPathsChanged(ListChangeListener.Change<? extends Path> change) {
-        if (!Platform.isFxApplicationThread())
-            throw new IllegalStateException("Must be on FX thread");
-        Set<InstanSegModel> set = new LinkedHashSet<>();
-        for (var modelPath : modelPaths) {
+    private void scanModels() {
+        var index = modelIndex;
+        var result = index.discover(roots);
+        index.save();
+        updateWatchedDirectories(result.watchDirs());
+
+        boolean changed = scannedModels.keySet().retainAll(result.models().keySet());
+        var modelDir = modelDirectoryBinding.get();
+        if (changed && modelDir != null) {
+            // Models have been removed, so some of the files they stored may no longer be needed
+            InstanSegModel.removeUnusedFiles(modelDir.resolve("downloaded"));
+        }
+        for (var entry : result.models().entrySet()) {
+            var modelPath = entry.getKey();
+            var specHash = entry.getValue();
+            var existing = scannedModels.get(modelPath);
+            // Only parse models that are new or modified
+            if (existing != null && Objects.equals(existing.specHash(), specHash))
+                continue;
             try {
-                set.add(InstanSegModel.fromPath(modelPath));
+                scannedModels.put(modelPath, new ScannedModel(specHash, InstanSegModel.fromPath(modelPath)));
             } catch (IOException e) {
                 logger.error("Unable to load model from path", e);
+                scannedModels.remove(modelPath);
             }
+            changed = true;
         }
-        models.setAll(set);
+        if (!changed)
+            return;
+
+        var newModels = scannedModels.values().stream()
+                .map(ScannedModel::model)
+                .toList();
+        FXUtils.runOnApplicationThread(() -> updateModels(newModels));
     }
 
     /**
-     * Get all the local models in a directory.
-     * @param dir
-     * @return
+     * Update the observable list of models, retaining existing models (and their order) where possible.
+     * This should only be called from the JavaFX application thread.
+     * @param newModels
      */
-    private static List<Path> getModelPathsInDir(Path dir) {
-        try {
-            return Files.list(dir)
-                    .filter(InstanSegModel::isValidModel)
-                    .toList();
-        } catch (IOException e) {
-            logger.error("Unable to list files in directory", e);
-            return List.of();
+    private void updateModels(List<InstanSegModel> newModels) {
+        var toKeep = Collections.newSetFromMap(new IdentityHashMap<InstanSegModel, Boolean>());
+        toKeep.addAll(newModels);
+        List<InstanSegModel> list = new ArrayList<>();
+        for (var model : models) {
+            if (toKeep.remove(model))
+                list.add(model);
         }
+        for (var model : newModels) {
+            if (toKeep.contains(model))
+                list.add(model);
+        }
+        if (!list.equals(models))
+            models.setAll(list);
     }
 
     /**
@@ -278,4 +335,6 @@ class Watcher {
         return modelsUnmodifiable;
     }
 
+    private record ScannedModel(String specHash, InstanSegModel model) {}
+
 }
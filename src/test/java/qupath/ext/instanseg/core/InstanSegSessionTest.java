@@ -0,0 +1,97 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InstanSegSessionTest {
+
+    // Use distinct device types, because DJL treats all CPU devices as the same device.
+    // The synthetic backend runs on the CPU regardless of the device it is given.
+    private static final List<Device> DEVICES = List.of(
+            Device.of("fake", 0),
+            Device.of("fake", 1),
+            Device.of("fake", 2));
+
+    private static InstanSeg createInstanSeg() {
+        return InstanSeg.builder()
+                .backend(SyntheticInferenceBackend.builder()
+                        .density(500)
+                        .latency(20, 0)
+                        .build())
+                .devices(DEVICES)
+                .downsample(1.0)
+                .tileDims(256)
+                .interTilePadding(16)
+                .nThreads(DEVICES.size() * 2)
+                .build();
+    }
+
+    private static ImageData<BufferedImage> createImageData(int width, int height) {
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        var raster = img.getRaster();
+        var rng = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, rng.nextInt(256));
+            }
+        }
+        return new ImageData<>(new WrappedBufferedImageServer("session-test", img));
+    }
+
+    @Test
+    void testPredictorsForEachDevice() throws Exception {
+        try (var session = createInstanSeg().openSession(2)) {
+            assertEquals(DEVICES, session.getDevices());
+            assertEquals(DEVICES.size() * 2, session.getPredictorCount());
+            var deviceNames = session.getPredictors().stream()
+                    .map(TilePredictor::getDeviceName)
+                    .collect(Collectors.toSet());
+            assertEquals(getDeviceNames(), deviceNames);
+        }
+    }
+
+    @Test
+    void testTilesSpreadAcrossDevices() throws Exception {
+        var instanSeg = createInstanSeg();
+        var imageData = createImageData(1024, 1024);
+        var parent = PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(0, 0, 1024, 1024, ImagePlane.getDefaultPlane()));
+        imageData.getHierarchy().addObject(parent);
+
+        try (var session = instanSeg.openSession()) {
+            var results = instanSeg.detectObjects(session, imageData, List.of(parent));
+
+            assertFalse(results.wasInterrupted());
+            assertEquals(0, results.nTilesFailed());
+            assertTrue(results.nTilesProcessed() > DEVICES.size());
+            var perDevice = results.nTilesPerDevice();
+            assertEquals(getDeviceNames(), perDevice.keySet());
+            for (var entry : perDevice.entrySet()) {
+                assertTrue(entry.getValue() > 0, "No tiles processed by " + entry.getKey());
+            }
+            int nInferred = perDevice.values().stream().mapToInt(Integer::intValue).sum();
+            assertEquals(results.nTilesProcessed() - results.nTilesSkipped(), nInferred);
+            assertTrue(results.nObjectsDetected() > 0);
+        }
+    }
+
+    private static Set<String> getDeviceNames() {
+        return DEVICES.stream().map(String::valueOf).collect(Collectors.toSet());
+    }
+
+}
@@ -0,0 +1,205 @@
+package qupath.ext.instanseg.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModelDownloaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final byte[] content = createContent(200_000);
+    private final List<String> rangeHeaders = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private URL url;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/model.zip", this::handle);
+        server.start();
+        url = new URL("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/model.zip");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * Serve the content, honoring simple range requests of the form 'bytes=start-'.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            rangeHeaders.add(String.valueOf(range));
+            int start = 0;
+            if (range != null) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (start >= content.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                exchange.sendResponseHeaders(206, content.length - start);
+            } else {
+                exchange.sendResponseHeaders(200, content.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content, start, content.length - start);
+            }
+        }
+    }
+
+    @Test
+    void testDownload() throws Exception {
+        var target = tempDir.resolve("model.zip");
+        String sha256 = ModelDownloader.download(url, target, sha256(content));
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(sha256(content), sha256);
+        assertEquals(List.of("null"), rangeHeaders);
+        assertFalse(Files.exists(partFile(target)));
+    }
+
+    @Test
+    void testResumeFromPartFile() throws Exception {
+        var target = tempDir.resolve("model.zip");
+        int existing = 12_345;
+        Files.write(partFile(target), Arrays.copyOf(content, existing));
+
+        String sha256 = ModelDownloader.download(url, target, sha256(content));
+
+        assertEquals(List.of("bytes=" + existing + "-"), rangeHeaders);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(sha256(content), sha256);
+        assertFalse(Files.exists(partFile(target)));
+    }
+
+    @Test
+    void testPartFileAlreadyComplete() throws Exception {
+        var target = tempDir.resolve("model.zip");
+        Files.write(partFile(target), content);
+
+        String sha256 = ModelDownloader.download(url, target, sha256(content));
+
+        // The server responds with 416, since there is nothing left to download
+        assertEquals(List.of("bytes=" + content.length + "-"), rangeHeaders);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(sha256(content), sha256);
+        assertFalse(Files.exists(partFile(target)));
+    }
+
+    @Test
+    void testChecksumMismatch() throws Exception {
+        var target = tempDir.resolve("model.zip");
+        var wrongSha256 = sha256(new byte[]{1, 2, 3});
+
+        assertThrows(IOException.class, () -> ModelDownloader.download(url, target, wrongSha256));
+
+        assertFalse(Files.exists(target));
+        assertFalse(Files.exists(partFile(target)));
+    }
+
+    @Test
+    void testExtractWritesCompletionMarker() throws Exception {
+        var zipFile = tempDir.resolve("model.zip");
+        var weights = createContent(2 * 1024 * 1024);
+        writeZip(zipFile,
+                "rdf.yaml", "name: test".getBytes(StandardCharsets.UTF_8),
+                "instanseg.pt", weights);
+        var destination = tempDir.resolve("models").resolve("test-1.0");
+
+        ModelDownloader.extract(zipFile, destination, "abc123");
+
+        assertTrue(ModelDownloader.isComplete(destination));
+        var props = ModelDownloader.readCompletionMarker(destination);
+        assertEquals("abc123", props.getProperty("sha256"));
+        assertEquals(sha256(weights), ModelStore.getChecksum(destination, "instanseg.pt"));
+        assertArrayEquals(weights, Files.readAllBytes(destination.resolve("instanseg.pt")));
+        assertEquals("name: test", Files.readString(destination.resolve("rdf.yaml")));
+        assertTrue(ModelStore.verify(destination));
+    }
+
+    @Test
+    void testIncompleteWithoutMarker() throws Exception {
+        var dir = Files.createDirectories(tempDir.resolve("partial"));
+        Files.writeString(dir.resolve("rdf.yaml"), "name: test");
+        assertFalse(ModelDownloader.isComplete(dir));
+        assertTrue(ModelDownloader.readCompletionMarker(dir).isEmpty());
+    }
+
+    @Test
+    void testZipSlipRejected() throws Exception {
+        var zipFile = tempDir.resolve("evil.zip");
+        writeZip(zipFile,
+                "rdf.yaml", "name: evil".getBytes(StandardCharsets.UTF_8),
+                "../../escaped.txt", "gotcha".getBytes(StandardCharsets.UTF_8));
+        var modelsDir = Files.createDirectories(tempDir.resolve("models"));
+        var destination = modelsDir.resolve("evil-1.0");
+
+        assertThrows(IOException.class, () -> ModelDownloader.extract(zipFile, destination, null));
+
+        assertFalse(Files.exists(tempDir.resolve("escaped.txt")));
+        assertFalse(Files.exists(modelsDir.resolve("escaped.txt")));
+        assertFalse(Files.exists(destination));
+        assertFalse(ModelDownloader.isComplete(destination));
+        // The temporary extraction directory should be removed
+        try (var stream = Files.list(modelsDir)) {
+            assertNull(stream.filter(p -> p.getFileName().toString().endsWith(".tmp")).findAny().orElse(null));
+        }
+    }
+
+    private static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static void writeZip(Path path, Object... namesAndContents) throws IOException {
+        try (var zip = new ZipOutputStream(Files.newOutputStream(path))) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry((String)namesAndContents[i]));
+                zip.write((byte[])namesAndContents[i + 1]);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] createContent(int length) {
+        var bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+}
@@ -0,0 +1,111 @@
+package qupath.ext.instanseg.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModelStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testVerifyDetectsModifiedContent() throws Exception {
+        var modelDir = extractModel("model-1.0", 1);
+        assertTrue(ModelStore.verify(modelDir));
+        assertTrue(ModelStore.verifyContents(modelDir));
+
+        // Change the content without changing the size
+        var blob = modelDir.resolve("instanseg.pt").toRealPath();
+        var modified = Files.readAllBytes(blob);
+        modified[0]++;
+        Files.write(blob, modified);
+        Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+
+        // The quick check doesn't read the file, so only fails once the content has been checked
+        assertTrue(ModelStore.verify(modelDir));
+        assertFalse(ModelStore.verifyContents(modelDir));
+        assertFalse(ModelStore.verify(modelDir));
+
+        // Restoring the content should make the model valid again
+        modified[0]--;
+        Files.write(blob, modified);
+        Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis() + 20_000));
+        assertTrue(ModelStore.verifyContents(modelDir));
+        assertTrue(ModelStore.verify(modelDir));
+    }
+
+    @Test
+    void testRemoveUnusedBlobs() throws Exception {
+        var modelDir = extractModel("model-1.0", 1);
+        var otherModelDir = extractModel("other-1.0", 2);
+        var blobDir = tempDir.resolve(ModelStore.BLOB_DIRECTORY);
+        var blob = modelDir.resolve("instanseg.pt").toRealPath();
+        var otherBlob = otherModelDir.resolve("instanseg.pt").toRealPath();
+        makeOld(blob);
+        makeOld(otherBlob);
+
+        // Nothing should be removed while both models exist
+        assertEquals(0, ModelStore.removeUnusedBlobs(blobDir));
+
+        deleteModel(modelDir);
+        assertEquals(1, ModelStore.removeUnusedBlobs(blobDir));
+        assertFalse(Files.exists(blob));
+        assertTrue(Files.exists(otherBlob));
+        assertTrue(ModelStore.verifyContents(otherModelDir));
+    }
+
+    @Test
+    void testRecentBlobsAreKept() throws Exception {
+        var modelDir = extractModel("model-1.0", 1);
+        var blob = modelDir.resolve("instanseg.pt").toRealPath();
+        deleteModel(modelDir);
+
+        // The blob might belong to a model that is still being extracted
+        assertEquals(0, ModelStore.removeUnusedBlobs(tempDir.resolve(ModelStore.BLOB_DIRECTORY)));
+        assertTrue(Files.exists(blob));
+    }
+
+    private Path extractModel(String name, long seed) throws IOException {
+        var weights = new byte[2 * 1024 * 1024];
+        new Random(seed).nextBytes(weights);
+        var zipFile = tempDir.resolve(name + ".zip");
+        try (var zip = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            zip.putNextEntry(new ZipEntry("rdf.yaml"));
+            zip.write(("name: " + name).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("instanseg.pt"));
+            zip.write(weights);
+            zip.closeEntry();
+        }
+        var modelDir = tempDir.resolve(name);
+        ModelDownloader.extract(zipFile, modelDir, null);
+        Files.delete(zipFile);
+        return modelDir;
+    }
+
+    private static void deleteModel(Path modelDir) throws IOException {
+        try (var stream = Files.list(modelDir)) {
+            for (var file : stream.toList())
+                Files.delete(file);
+        }
+        Files.delete(modelDir);
+    }
+
+    private static void makeOld(Path path) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 24 * 60 * 60 * 1000L));
+    }
+
+}